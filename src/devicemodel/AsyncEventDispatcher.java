@@ -0,0 +1,269 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers change events on an executor so the updating thread only has to
+ * enqueue them. Every listener gets its own bounded queue and is called by at
+ * most one thread at a time, in order. While a listener is behind, pending
+ * events from the same node are delivered as a single merged event tree;
+ * the merging is done by the delivering thread, so an update costs the same
+ * however far behind the listeners are. When a listener's queue is full
+ * the oldest pending event is dropped. A queue is only kept while it has
+ * events pending, so listeners that go away leave nothing behind.
+ *
+ * @author root
+ */
+public class AsyncEventDispatcher extends EventDispatcher {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    // events delivered per executor task before yielding to other listeners
+    private static final int DRAIN_BATCH = 64;
+
+    private final Executor executor;
+    private final int queueCapacity;
+    private final ConcurrentHashMap<PropertyChangeListener, ListenerQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // bounded pool of daemon threads, one per processor
+    public AsyncEventDispatcher() {
+        this(newDefaultExecutor(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AsyncEventDispatcher(Executor executor, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void dispatch(DeviceNode source, PropertyChangeListener listener, DeviceNode change) {
+        while (!queueFor(listener).offer(source, change)) {
+            // that queue drained and was let go just now; take a new one
+        }
+    }
+
+    // forget the events still pending for a listener that was removed from
+    // its node
+    public void release(PropertyChangeListener l) {
+        queues.remove(l);
+    }
+
+    public int getQueueDepth(PropertyChangeListener l) {
+        ListenerQueue q = queues.get(l);
+        return q == null ? 0 : q.depth();
+    }
+
+    // pending events over all listeners
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ListenerQueue q : queues.values()) {
+            depth += q.depth();
+        }
+        return depth;
+    }
+
+    // events dropped for l since it last caught up
+    public long getDroppedCount(PropertyChangeListener l) {
+        ListenerQueue q = queues.get(l);
+        return q == null ? 0 : q.dropped;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // events that were merged into an already pending event for the same node
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    private ListenerQueue queueFor(PropertyChangeListener l) {
+        ListenerQueue q = queues.get(l);
+        if (q == null) {
+            q = new ListenerQueue(l);
+            ListenerQueue existing = queues.putIfAbsent(l, q);
+            if (existing != null) {
+                q = existing;
+            }
+        }
+        return q;
+    }
+
+    // merge two event trees for the same node into a new one; the event trees
+    // are shared between listeners so neither input is modified
+    static DeviceNode merge(DeviceNode older, DeviceNode newer) {
+        DeviceNode merged = newer.cloneShallow();
+
+        for (DeviceNode n : newer.getChildren().values()) {
+            DeviceNode o = older.getChild(n.getName());
+            try {
+                merged.addChild(o == null ? n.cloneDeep() : merge(o, n));
+            } catch (Exception ex) {
+                // we just made this child; it'll always have a null parent
+            }
+        }
+        for (DeviceNode o : older.getChildren().values()) {
+            if (newer.getChild(o.getName()) == null) {
+                try {
+                    merged.addChild(o.cloneDeep());
+                } catch (Exception ex) {
+                    // we just made this child; it'll always have a null parent
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-events-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private final class ListenerQueue implements Runnable {
+
+        private final PropertyChangeListener listener;
+        // pending event trees by source node, oldest node first and each
+        // node's events in order; merged when delivered. Guarded by this
+        private final LinkedHashMap<DeviceNode, List<DeviceNode>> pending = new LinkedHashMap<>();
+        // events over all nodes
+        private int events = 0;
+        private boolean scheduled = false;
+        // drained and taken out of the queues map; takes no more events
+        private boolean retired = false;
+        private volatile long dropped = 0;
+
+        ListenerQueue(PropertyChangeListener listener) {
+            this.listener = listener;
+        }
+
+        // false if this queue was retired, and the event not taken
+        boolean offer(DeviceNode source, DeviceNode change) {
+            boolean schedule;
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                if (events >= queueCapacity) {
+                    dropOldest();
+                }
+                List<DeviceNode> previous = pending.get(source);
+                if (previous != null) {
+                    // keeps its place in line; merged on delivery
+                    previous.add(change);
+                    coalesced.incrementAndGet();
+                } else {
+                    List<DeviceNode> list = new ArrayList<>(2);
+                    list.add(change);
+                    pending.put(source, list);
+                }
+                events++;
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                submit();
+            }
+            return true;
+        }
+
+        synchronized int depth() {
+            return events;
+        }
+
+        // the first event of the node longest in line; called holding this
+        private void dropOldest() {
+            Iterator<List<DeviceNode>> eldest = pending.values().iterator();
+            List<DeviceNode> list = eldest.next();
+            list.remove(0);
+            if (list.isEmpty()) {
+                eldest.remove();
+            }
+            events--;
+            dropped++;
+            AsyncEventDispatcher.this.dropped.incrementAndGet();
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // leave the events pending; the next offer will try again
+                synchronized (this) {
+                    scheduled = false;
+                }
+                Logger.getLogger(AsyncEventDispatcher.class.getName()).log(Level.WARNING, "event executor rejected delivery", ex);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int delivered = 0; delivered < DRAIN_BATCH; delivered++) {
+                DeviceNode source;
+                List<DeviceNode> changes;
+                synchronized (this) {
+                    Iterator<Map.Entry<DeviceNode, List<DeviceNode>>> i = pending.entrySet().iterator();
+                    if (!i.hasNext()) {
+                        // caught up: let the queue go until the next event
+                        scheduled = false;
+                        retired = true;
+                        queues.remove(listener, this);
+                        return;
+                    }
+                    Map.Entry<DeviceNode, List<DeviceNode>> next = i.next();
+                    source = next.getKey();
+                    changes = next.getValue();
+                    i.remove();
+                    events -= changes.size();
+                }
+                DeviceNode change = changes.get(0);
+                for (int k = 1; k < changes.size(); k++) {
+                    change = merge(change, changes.get(k));
+                }
+                try {
+                    listener.propertyChange(new PropertyChangeEvent(source, DeviceNode.PROPERTY_CHANGE_NAME, null, change));
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(AsyncEventDispatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            // more pending; go to the back of the executor's line
+            submit();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index of one tree on one attribute: the nodes holding the
+ * attribute, by its value. Made with DeviceNode.createIndex() and kept by
+ * the root like subscriptions; addAttribute(), update(), apply(),
+ * addChild() and removeChild() refresh it for the nodes they touch.
+ *
+ * A refresh files a node by what it holds when the refresh runs, and
+ * refreshes of one index run one at a time, so the index always ends up
+ * with the state after the last change, whatever order concurrent writers
+ * get here in. A reader can still find a node that changed a moment ago
+ * under its old value, which is why NodeQuery checks every node the index
+ * hands it again.
+ *
+ * @author root
+ */
+final class AttributeIndex {
+
+    final String attribute;
+    private final DeviceNode root;
+    // nodes by attribute value; the sets are read without locking
+    private final ConcurrentHashMap<String, Set<DeviceNode>> byValue = new ConcurrentHashMap<>();
+    // the value each node is filed under
+    private final ConcurrentHashMap<DeviceNode, String> filed = new ConcurrentHashMap<>();
+    // false until the tree has been filed once; not used by queries before
+    private volatile boolean ready = false;
+
+    AttributeIndex(String attribute, DeviceNode root) {
+        this.attribute = attribute;
+        this.root = root;
+    }
+
+    // file the whole tree; called once, after the index was made visible
+    // to writers, so no change made meanwhile is lost
+    synchronized void build() {
+        file(root);
+        ready = true;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    // file a node and its subtree again, after it was added to or removed
+    // from the tree
+    synchronized void refreshTree(DeviceNode node) {
+        file(node);
+    }
+
+    // file a node again, after its attribute changed
+    synchronized void refresh(DeviceNode node) {
+        fileNode(node);
+    }
+
+    // the nodes holding the attribute with this value
+    Set<DeviceNode> get(String value) {
+        Set<DeviceNode> nodes = byValue.get(value);
+        return nodes == null ? Collections.<DeviceNode>emptySet() : Collections.unmodifiableSet(nodes);
+    }
+
+    // the nodes holding the attribute at all
+    Set<DeviceNode> all() {
+        return Collections.unmodifiableSet(filed.keySet());
+    }
+
+    // how many nodes are filed
+    int size() {
+        return filed.size();
+    }
+
+    private void file(DeviceNode node) {
+        fileNode(node);
+        for (DeviceNode child : node.getChildren().values()) {
+            file(child);
+        }
+    }
+
+    private void fileNode(DeviceNode node) {
+        String now = node.getRoot() == root ? node.getAttribute(attribute) : null;
+        String was = now == null ? filed.remove(node) : filed.put(node, now);
+        if (was == null ? now == null : was.equals(now)) {
+            return;
+        }
+        if (was != null) {
+            Set<DeviceNode> nodes = byValue.get(was);
+            nodes.remove(node);
+            if (nodes.isEmpty()) {
+                byValue.remove(was);
+            }
+        }
+        if (now != null) {
+            Set<DeviceNode> nodes = byValue.get(now);
+            if (nodes == null) {
+                nodes = Collections.newSetFromMap(new ConcurrentHashMap<DeviceNode, Boolean>());
+                byValue.put(now, nodes);
+            }
+            nodes.add(node);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Immutable, interned set of attributes. Nodes with the same attributes
+ * (48 line cards' worth of units="C", type="int") all point at one instance;
+ * changing a node's attributes swaps in another interned set rather than
+ * modifying this one. Keys and values are interned strings, kept sorted by
+ * key.
+ *
+ * @author root
+ */
+public final class AttributeSet extends AbstractMap<String, String> {
+
+    public static final AttributeSet EMPTY = new AttributeSet(new String[0], new String[0]);
+
+    // weak so sets no node uses any more can go; striped to keep writers on
+    // different sets apart
+    private static final int STRIPES = 16;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final WeakHashMap<AttributeSet, WeakReference<AttributeSet>>[] POOL = new WeakHashMap[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            POOL[i] = new WeakHashMap<>();
+        }
+    }
+
+    private final String[] keys;
+    private final String[] values;
+    private final int hash;
+    // the last with() made from this set; nodes of one kind get the same
+    // attributes in the same order, so loading a model mostly hits this
+    // instead of the pool
+    private volatile Transition last;
+    // 64-bit hash for subtree hashes, worked out on first use; 0 until then
+    private volatile long longHash;
+
+    private AttributeSet(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+        int h = 0;
+        for (int i = 0; i < keys.length; i++) {
+            // same as AbstractMap.hashCode()
+            h += keys[i].hashCode() ^ values[i].hashCode();
+        }
+        this.hash = h;
+    }
+
+    // the shared instance holding the same attributes as the map
+    public static AttributeSet of(Map<String, String> map) {
+        if (map instanceof AttributeSet) {
+            return (AttributeSet) map;
+        }
+        return EMPTY.withAll(map);
+    }
+
+    // a set with name changed to value; a null value removes the attribute
+    public AttributeSet with(String name, String value) {
+        Transition t = last;
+        if (t != null && t.name.equals(name) && Objects.equals(t.value, value)) {
+            return t.result;
+        }
+        AttributeSet result = change(name, value);
+        if (result != this) {
+            last = new Transition(name, value, result);
+        }
+        return result;
+    }
+
+    private AttributeSet change(String name, String value) {
+        int i = indexOf(name);
+        if (value == null) {
+            if (i < 0) {
+                return this;
+            }
+            String[] k = new String[keys.length - 1];
+            String[] v = new String[keys.length - 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(values, 0, v, 0, i);
+            System.arraycopy(keys, i + 1, k, i, keys.length - i - 1);
+            System.arraycopy(values, i + 1, v, i, keys.length - i - 1);
+            return intern(new AttributeSet(k, v));
+        }
+        if (i >= 0) {
+            if (values[i].equals(value)) {
+                return this;
+            }
+            String[] v = values.clone();
+            v[i] = value.intern();
+            return intern(new AttributeSet(keys, v));
+        }
+        int at = -i - 1;
+        String[] k = new String[keys.length + 1];
+        String[] v = new String[keys.length + 1];
+        System.arraycopy(keys, 0, k, 0, at);
+        System.arraycopy(values, 0, v, 0, at);
+        k[at] = name.intern();
+        v[at] = value.intern();
+        System.arraycopy(keys, at, k, at + 1, keys.length - at);
+        System.arraycopy(values, at, v, at + 1, keys.length - at);
+        return intern(new AttributeSet(k, v));
+    }
+
+    public AttributeSet withAll(Map<String, String> map) {
+        if (keys.length == 0 && map instanceof AttributeSet) {
+            return (AttributeSet) map;
+        }
+        AttributeSet s = this;
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            s = s.with(e.getKey(), e.getValue());
+        }
+        return s;
+    }
+
+    private static AttributeSet intern(AttributeSet s) {
+        if (s.keys.length == 0) {
+            return EMPTY;
+        }
+        WeakHashMap<AttributeSet, WeakReference<AttributeSet>> pool = POOL[(s.hash ^ (s.hash >>> 16)) & (STRIPES - 1)];
+        synchronized (pool) {
+            WeakReference<AttributeSet> ref = pool.get(s);
+            AttributeSet existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            pool.put(s, new WeakReference<>(s));
+            return s;
+        }
+    }
+
+    private int indexOf(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, (String) name);
+    }
+
+    private static final class Transition {
+
+        final String name;
+        final String value;
+        final AttributeSet result;
+
+        Transition(String name, String value, AttributeSet result) {
+            this.name = name;
+            this.value = value;
+            this.result = result;
+        }
+    }
+
+    @Override
+    public String get(Object name) {
+        int i = indexOf(name);
+        return i >= 0 ? values[i] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    long longHash() {
+        long h = longHash;
+        if (h == 0) {
+            h = keys.length;
+            for (int i = 0; i < keys.length; i++) {
+                h = Hashing.combine(h, Hashing.combine(Hashing.string(keys[i]), Hashing.string(values[i])));
+            }
+            longHash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof AttributeSet) {
+            AttributeSet other = (AttributeSet) o;
+            return hash == other.hash && Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (i >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> e = new SimpleImmutableEntry<>(keys[i], values[i]);
+                        i++;
+                        return e;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("attribute sets are immutable");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+}
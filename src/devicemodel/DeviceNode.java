@@ -3,39 +3,91 @@ package devicemodel;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.AbstractMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 
-public class DeviceNode implements PropertyChangeListener {
+public class DeviceNode implements PropertyChangeListener, NodeView {
 
     public static final String PROPERTY_CHANGE_NAME = "update";
+    // source of modification versions; shared by all trees so versions from
+    // any node can be compared. Writers only read it, so it costs them
+    // nothing; it moves on when someone asks for the current version (see
+    // stamp())
+    private static final AtomicLong CLOCK = new AtomicLong(1);
+    private static final AtomicLongFieldUpdater<DeviceNode> SUBTREE_VERSION
+            = AtomicLongFieldUpdater.newUpdater(DeviceNode.class, "subtreeVersion");
+    private static final AtomicReferenceFieldUpdater<DeviceNode, AttributeSet> ATTRIBUTES
+            = AtomicReferenceFieldUpdater.newUpdater(DeviceNode.class, AttributeSet.class, "attributes");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<DeviceNode, ConcurrentMap> CHILDREN
+            = AtomicReferenceFieldUpdater.newUpdater(DeviceNode.class, ConcurrentMap.class, "children");
+    // shared by every node without children, i.e. most of them; a node gets
+    // a map of its own when its first child is added. Never written to
+    private static final ConcurrentMap<String, DeviceNode> NO_CHILDREN = new ConcurrentHashMap<>(1);
+    private static final AtomicReferenceFieldUpdater<DeviceNode, Tombstones> REMOVED
+            = AtomicReferenceFieldUpdater.newUpdater(DeviceNode.class, Tombstones.class, "removed");
+    // removals remembered per node for changesSince(); older ones are dropped
+    static final int MAX_TOMBSTONES = 256;
+    private static final AtomicIntegerFieldUpdater<DeviceNode> HASH_STAMP
+            = AtomicIntegerFieldUpdater.newUpdater(DeviceNode.class, "hashStamp");
+    private static final AtomicIntegerFieldUpdater<DeviceNode> VALUE_SEQ
+            = AtomicIntegerFieldUpdater.newUpdater(DeviceNode.class, "valueSeq");
     // listeners will get updates fired when this node's value or children's values change
     // note that the public method setValue() does not fire an event, but allows 
     // access for the user to set the value at initialization, etc
     // usage of the update(DeviceNode) method is preferred as it will fire updates 
     // and handle all update change aggregation and parent recursion
-    private final PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
-    protected DeviceNode parent = null;
+    // created when first asked for; most nodes of a large tree never get a
+    // listener of their own
+    private volatile PropertyChangeSupport changeSupport;
+    protected volatile DeviceNode parent = null;
     protected String name = null;
-    protected String value = "";
+    // the value is written under a sequence lock: valueSeq is odd while a
+    // writer is changing the three fields below, and readers retry if it
+    // moved while they read them, so nobody sees half of a change
+    private volatile int valueSeq;
+    protected volatile String value = "";
+    // typed values keep their bits here and leave value null; see ValueType
+    private volatile ValueType valueType = ValueType.STRING;
+    private volatile long bits;
     
-    // stores all of this node's children by name
-    protected final Map<String, DeviceNode> children = new ConcurrentHashMap<>();
-    // stores references to ALL children and grandchildren of this node
-    protected final Map<String, DeviceNode> allChildren = new ConcurrentHashMap<>();
+    // stores all of this node's children by name; taken together the children
+    // maps of a tree form its path trie, so path lookups walk them directly
+    // instead of keeping a flattened copy of every descendant in each ancestor.
+    // NO_CHILDREN until there is one; write only through ownChildren()
+    protected volatile ConcurrentMap<String, DeviceNode> children = NO_CHILDREN;
     // assumption is that attributes do not regularly change and do not fire events
     // the element values store the changing data; attributes describe the data
     // value changes cause events to be triggered and fired, but include attribute for the changed elements
-    protected final Map<String, String> attributes = new ConcurrentHashMap<>();
+    // the set is immutable and interned, so nodes describing the same kind of
+    // data share one instance; changes swap in another set (see AttributeSet)
+    private volatile AttributeSet attributes = AttributeSet.EMPTY;
     //
     // these are access handlers for the node
     // SET: called at set(DeviceNode) when requesting this node's value to change
@@ -48,13 +100,51 @@ public class DeviceNode implements PropertyChangeListener {
     private NodeHandler setHandle;
     private NodeHandler updateHandle;
     private NodeGetHandler getHandle;
+    // recent results of getHandle, if they may be reused for a while
+    private volatile GetHandlerCache getCache;
+    // tree-wide settings; only used on the root node, created on first use
+    private volatile TreeContext context;
+    // last immutable copy of this node (see snapshot()); dirty is set on this
+    // node and its ancestors whenever something below them changes, so the
+    // next publication only copies the changed spine
+    private volatile NodeSnapshot snapshot;
+    private volatile boolean dirty = true;
+    private volatile boolean structureChanged = true;
+    // modification versions (see changesSince()): when this node's value or
+    // attributes last changed, when it was attached to its parent, and the
+    // latest change anywhere in its subtree, removals included
+    private volatile long version;
+    private volatile long attachedVersion;
+    private volatile long subtreeVersion;
+    // children removed from this node, made on the first removal
+    private volatile Tombstones removed;
+    // recent values, for nodes asked to keep them (see trackHistory())
+    private volatile HistoryBuffer history;
+    // content hash of the subtree (see getSubtreeHash()), worked out when
+    // asked for. hashStamp is odd while the hash is stale and no one has
+    // started working it out; a reader makes it even when it starts, and a
+    // change makes it odd again. The hash is current while hashValidFor,
+    // the stamp it was worked out at, still equals it
+    private volatile long subtreeHash;
+    private volatile int hashStamp = 1;
+    private volatile int hashValidFor = -1;
+    // whether some node of the subtree has an update handler; found along
+    // with the hash
+    private volatile boolean handledBelow;
+    long nameHash;
+    // the subscriptions matching this node, cached by SubscriptionIndex
+    volatile SubscriptionIndex.Matches matches;
+    // serialized forms of this node, if the tree has a FragmentCache
+    volatile FragmentCache.Entry fragments;
 
     public DeviceNode(String name) {
         this(name, null);
     }
 
     public DeviceNode(String name, DeviceNode parent) {
-        this.name = name;
+        // names repeat across every instance of a device; keep one copy
+        this.name = name == null ? null : name.intern();
+        this.nameHash = Hashing.string(this.name);
         if (parent != null) {
             try {
                 parent.addChild(this);
@@ -69,338 +159,1855 @@ public class DeviceNode implements PropertyChangeListener {
     }
 
     public PropertyChangeSupport getChangeSupport() {
-        return changeSupport;
+        PropertyChangeSupport support = changeSupport;
+        if (support == null) {
+            synchronized (this) {
+                support = changeSupport;
+                if (support == null) {
+                    support = new PropertyChangeSupport(this);
+                    changeSupport = support;
+                }
+            }
+        }
+        return support;
+    }
+
+    // hand an event for this node to its listeners, if it has any; returns 1
+    // if it had some, for the fan-out metrics
+    private int fire(EventDispatcher dispatcher, DeviceNode change, TreeMetrics metrics) {
+        PropertyChangeSupport support = changeSupport;
+        if (support == null || !support.hasListeners(PROPERTY_CHANGE_NAME)) {
+            return 0;
+        }
+        if (metrics == null) {
+            dispatcher.fire(this, support, change);
+        } else {
+            long start = System.nanoTime();
+            dispatcher.fire(this, support, change);
+            metrics.dispatch.record(System.nanoTime() - start);
+        }
+        return 1;
+    }
+
+    // the tree's metrics, or null if they're off
+    public TreeMetrics getMetrics() {
+        TreeContext ctx = getContext();
+        return ctx == null ? null : ctx.metrics;
+    }
+
+    public void setMetrics(TreeMetrics metrics) {
+        TreeContext ctx = getOrCreateContext();
+        // the tree is counted once, with writers held off; from then on
+        // adding and removing children keeps the count
+        ctx.lock.writeLock().lock();
+        try {
+            if (metrics != null) {
+                metrics.attach(getRoot());
+            }
+            ctx.metrics = metrics;
+        } finally {
+            ctx.lock.writeLock().unlock();
+        }
+    }
+
+    public DeviceNode getRoot() {
+        DeviceNode n = this;
+        while (n.parent != null) {
+            n = n.parent;
+        }
+        return n;
+    }
+
+    // the tree's context, or null if none was created yet
+    TreeContext getContext() {
+        return getRoot().context;
+    }
+
+    TreeContext getOrCreateContext() {
+        DeviceNode root = getRoot();
+        TreeContext ctx = root.context;
+        if (ctx == null) {
+            synchronized (root) {
+                ctx = root.context;
+                if (ctx == null) {
+                    ctx = new TreeContext();
+                    root.context = ctx;
+                }
+            }
+        }
+        return ctx;
+    }
+
+    // the dispatcher is shared by the whole tree and set on its root
+    public EventDispatcher getEventDispatcher() {
+        TreeContext ctx = getContext();
+        return ctx == null ? EventDispatcher.SYNCHRONOUS : ctx.dispatcher;
+    }
+
+    public void setEventDispatcher(EventDispatcher dispatcher) {
+        getOrCreateContext().dispatcher = dispatcher == null ? EventDispatcher.SYNCHRONOUS : dispatcher;
     }
 
+    // the journal is shared by the whole tree and set on its root; null for none
+    public TreeJournal getJournal() {
+        TreeContext ctx = getContext();
+        return ctx == null ? null : ctx.journal;
+    }
+
+    public void setJournal(TreeJournal journal) {
+        getOrCreateContext().journal = journal;
+    }
+
+    // the cache of serialized fragments the conversions use for this tree;
+    // null (the default) for none
+    public FragmentCache getFragmentCache() {
+        TreeContext ctx = getContext();
+        return ctx == null ? null : ctx.fragments;
+    }
+
+    public void setFragmentCache(FragmentCache cache) {
+        getOrCreateContext().fragments = cache;
+    }
+
+    // listen to every node below this one whose path matches the pattern,
+    // e.g. "/Chassis/*/Ports/**/Status"; see SubscriptionIndex for the syntax.
+    // Subscriptions are kept by the root, so one index serves the whole tree
+    public Subscription subscribe(String pattern, PropertyChangeListener listener) {
+        String prefix = getRelativePath();
+        return getOrCreateContext().subscriptions.add(prefix + "/" + pattern, listener);
+    }
+
+    // the nodes below this one whose path matches the pattern, narrowed down
+    // with the conditions of the query returned, e.g.
+    // query("/*/Alarms/*").attribute("severity", "critical").list()
+    public NodeQuery query(String pattern) {
+        return new NodeQuery(this, pattern);
+    }
+
+    // index the tree on an attribute, so that queries asking for it look the
+    // nodes up instead of walking the tree; see NodeQuery. Indexes are kept
+    // by the root, like subscriptions, and cover the whole tree. Every
+    // change of the attribute and every added or removed subtree then also
+    // refiles the nodes concerned, so index only attributes that are queried
+    public void createIndex(String attribute) {
+        TreeContext ctx = getOrCreateContext();
+        AttributeIndex index = new AttributeIndex(attribute, getRoot());
+        if (ctx.indexes.putIfAbsent(attribute, index) == null) {
+            index.build();
+        }
+    }
+
+    public void dropIndex(String attribute) {
+        TreeContext ctx = getContext();
+        if (ctx != null) {
+            ctx.indexes.remove(attribute);
+        }
+    }
+
+    public Set<String> getIndexedAttributes() {
+        TreeContext ctx = getContext();
+        return ctx == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(ctx.indexes.keySet());
+    }
+
+    // immutable, consistent copy of this node and its subtree; O(1) once the
+    // tree publishes snapshots, which it does from the first call on. Never
+    // shows part of an UpdateBatch
+    public NodeSnapshot snapshot() {
+        DeviceNode root = getRoot();
+        NodeSnapshot s = root.getOrCreateContext().latestSnapshot(root);
+        return root == this ? s : s.getChildByPath(getRelativePath());
+    }
+
+    // like snapshot(), but never hands back an older copy while a newer one
+    // is being published: everything written before the call is included
+    public NodeSnapshot currentSnapshot() {
+        DeviceNode root = getRoot();
+        NodeSnapshot s = root.getOrCreateContext().currentSnapshot(root);
+        return root == this ? s : s.getChildByPath(getRelativePath());
+    }
+
+    // copy of this subtree, with the nodes that have a get handler asking it
+    // for their value. The copy is taken under the tree's lock, and the
+    // handlers are called once it is let go, so no device I/O happens under
+    // it. With a handler executor set on the tree, all the get handlers below
+    // run at once, each given the handler timeout from when it starts
+    // running; a handler that runs out of time, or never gets a thread,
+    // leaves its node's value from when get() was called in the result.
+    // Without one they run here, one after another
     public DeviceNode get() {
+        TreeContext ctx = getContext();
+        if (ctx == null) {
+            return getNode(null, null);
+        }
+
+        List<GetCall> calls = new ArrayList<>();
+        DeviceNode copy;
+        ctx.lock.readLock().lock();
+        try {
+            ExecutorService executor = ctx.handlerExecutor;
+            copy = getNode(executor, calls);
+        } finally {
+            ctx.lock.readLock().unlock();
+        }
+        if (calls.isEmpty()) {
+            return copy;
+        }
+
+        try {
+            // the handlers no executor took, parents first
+            for (GetCall call : calls) {
+                if (call.future == null) {
+                    call.callHere();
+                }
+            }
+        } catch (RuntimeException | Error ex) {
+            cancel(calls);
+            throw ex;
+        }
+
+        long timeout = ctx.handlerTimeout;
+        // with one thread the last handler starts after all the others ran out
+        // of time; one that hasn't started by then is given up on
+        long limit = System.nanoTime() + timeout * calls.size();
+        try {
+            // children first, so a handler's result takes on their final copies
+            for (int i = calls.size() - 1; i >= 0; i--) {
+                GetCall call = calls.get(i);
+                DeviceNode r = call.future == null ? call.result : call.await(timeout, limit);
+                if (r != null && r != call.copy) {
+                    copy = call.replace(r, copy);
+                }
+            }
+        } finally {
+            cancel(calls);
+        }
+        return copy;
+    }
+
+    private static void cancel(List<GetCall> calls) {
+        for (GetCall call : calls) {
+            if (call.future != null) {
+                call.future.cancel(true);
+            }
+        }
+    }
+
+    // calls is null to call the get handlers here. Otherwise they are added
+    // to it parents first, with this node's current value as a stand-in in
+    // the copy until they're done, and handed to the executor if there is one
+    private DeviceNode getNode(ExecutorService executor, List<GetCall> calls) {
 
         DeviceNode ret = null;
         
         // fire getHandle, if it's attached
         if (this.getHandle != null) {
-            ret = getHandle.handle();
+            GetHandlerCache cache = getCache;
+            if (calls == null || cache != null && cache.isFresh()) {
+                ret = handleGet();
+            } else {
+                GetCall call = new GetCall(cloneShallow());
+                if (executor != null) {
+                    try {
+                        call.future = executor.submit(call);
+                    } catch (RejectedExecutionException ex) {
+                        // called by get() like without an executor
+                    }
+                }
+                calls.add(call);
+                ret = call.copy;
+            }
         } else {
             // otherwise do a shallow clone on this node
             ret = this.cloneShallow();
         }
 
-        Iterator<String> i = getChildren().keySet().iterator();
+        Iterator<String> i = getChildren().keySet().iterator();
+
+        // loop through all children 
+        while (i.hasNext()) {
+            String s = i.next();
+            DeviceNode child = this.getChild(s);
+            if (child != null) {
+                try {
+                    ret.addChild(child.getNode(executor, calls));
+                } catch (Exception ex) {
+                    Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        
+        return ret;
+    }
+
+    // a get handler called for get(), on the handler executor or, with no
+    // future, by get() itself
+    private final class GetCall implements Callable<DeviceNode> {
+
+        // the node's stand-in in the copy
+        final DeviceNode copy;
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile long startedAt;
+        Future<DeviceNode> future;
+        // what the handler returned, when get() called it
+        DeviceNode result;
+
+        GetCall(DeviceNode copy) {
+            this.copy = copy;
+        }
+
+        void callHere() {
+            result = handleGet();
+        }
+
+        @Override
+        public DeviceNode call() {
+            startedAt = System.nanoTime();
+            started.countDown();
+            return handleGet();
+        }
+
+        // the handler's result, or null if it didn't start before limit or
+        // took longer than timeout once it did
+        DeviceNode await(long timeout, long limit) {
+            try {
+                if (!started.await(limit - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    future.cancel(true);
+                    Logger.getLogger(DeviceNode.class.getName()).log(Level.WARNING, "get handler of {0} never started", getNodePath());
+                    return null;
+                }
+                return future.get(startedAt + timeout - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                future.cancel(true);
+                Logger.getLogger(DeviceNode.class.getName()).log(Level.WARNING, "get handler of {0} timed out", getNodePath());
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                // as if the handler had been called here
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+
+        // put the handler's result in the stand-in's place, with the
+        // stand-in's children; returns the root of the copy
+        DeviceNode replace(DeviceNode result, DeviceNode root) {
+            DeviceNode parent = copy.getParent();
+            for (DeviceNode c : new ArrayList<>(copy.getChildren().values())) {
+                copy.removeChild(c);
+                try {
+                    result.addChild(c);
+                } catch (Exception ex) {
+                    Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            if (parent == null) {
+                return result;
+            }
+            parent.removeChild(copy);
+            try {
+                parent.addChild(result);
+            } catch (Exception ex) {
+                Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return root;
+        }
+    }
+
+    // the get handler's result, from the cache if there's a fresh one
+    private DeviceNode handleGet() {
+        GetHandlerCache cache = getCache;
+        if (cache == null) {
+            return callGetHandle();
+        }
+        return cache.get(new Callable<DeviceNode>() {
+
+            @Override
+            public DeviceNode call() {
+                return callGetHandle();
+            }
+        });
+    }
+
+    // call the get handler, timing it if metrics are on
+    private DeviceNode callGetHandle() {
+        TreeMetrics metrics = getMetrics();
+        if (metrics == null) {
+            return getHandle.handle();
+        }
+        long start = System.nanoTime();
+        try {
+            return getHandle.handle();
+        } finally {
+            metrics.getHandler.record(System.nanoTime() - start);
+        }
+    }
+
+    // run the tree's get and set handlers on this executor, so independent
+    // ones don't wait for each other; null (the default) runs them one after
+    // another on the calling thread. The executor isn't shut down by the tree
+    public void setHandlerExecutor(ExecutorService executor) {
+        getOrCreateContext().handlerExecutor = executor;
+    }
+
+    public ExecutorService getHandlerExecutor() {
+        TreeContext ctx = getContext();
+        return ctx == null ? null : ctx.handlerExecutor;
+    }
+
+    // how long a handler run on the handler executor may take
+    public void setHandlerTimeout(long millis) {
+        getOrCreateContext().handlerTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getHandlerTimeout() {
+        TreeContext ctx = getContext();
+        return TimeUnit.NANOSECONDS.toMillis(ctx == null ? TreeContext.DEFAULT_HANDLER_TIMEOUT : ctx.handlerTimeout);
+    }
+
+    public void set(DeviceNode n) {
+
+        // make sure it's this node
+        if (n.getName().equalsIgnoreCase(this.name)) {
+
+            // fire setHandle, if it's attached
+            if (this.setHandle != null) {
+                TreeMetrics metrics = getMetrics();
+                long start = metrics == null ? 0 : System.nanoTime();
+                setHandle.handle(n);
+                if (metrics != null) {
+                    metrics.setHandler.record(System.nanoTime() - start);
+                }
+            }
+
+            Iterator<String> i = n.getChildren().keySet().iterator();
+
+            // loop through all children 
+            while (i.hasNext()) {
+                String s = i.next();
+                if (this.getChildren().containsKey(s)) {
+                    this.getChild(s).set(n.getChild(s));
+                }
+            }
+        }
+    }
+
+    // set() for many devices at once: the set handlers of the nodes n sets
+    // run on the tree's handler executor (see setHandlerExecutor()), each
+    // given the handler timeout from when it starts, and what became of each
+    // is reported instead of the first failure being thrown. Waits for all of
+    // them. Without an executor they run here, one after another
+    public SetResult setParallel(DeviceNode n) {
+        return setParallel(n, false);
+    }
+
+    // with parentsFirst, a node's handler only starts once the handler of
+    // its nearest ancestor that has one has returned, and is skipped if that
+    // one failed, e.g. for a port that can only be set up on an enabled card
+    public SetResult setParallel(DeviceNode n, boolean parentsFirst) {
+        TreeContext ctx = getContext();
+        ExecutorService executor = ctx == null ? null : ctx.handlerExecutor;
+        long timeout = ctx == null ? TreeContext.DEFAULT_HANDLER_TIMEOUT : ctx.handlerTimeout;
+        return new SetFanOut(executor, timeout, parentsFirst).run(this, n);
+    }
+
+    // update to be called from external classes; this calls the recursive loop
+    // to update all the children (if applicable) and fire the aggregated events
+    public void update(DeviceNode n) {
+        TreeContext ctx = getContext();
+        EventDispatcher dispatcher = ctx == null ? EventDispatcher.SYNCHRONOUS : ctx.dispatcher;
+
+        // the update handlers have their say before the lock is taken
+        Set<DeviceNode> vetoed = askHandlers(n, null);
+
+        // do recursive update, collecting the aggregated change events
+        DeviceNode change;
+        if (ctx == null) {
+            change = updateNode(n, vetoed, null);
+        } else {
+            ctx.lock.readLock().lock();
+            try {
+                // attribute changes make no event, so they are noted apart
+                boolean[] attributes = ctx.journal == null ? null : new boolean[1];
+                change = updateNode(n, vetoed, attributes);
+                if (attributes != null && (change != null || attributes[0])) {
+                    ctx.journal.updated(getRelativePath(), journalTree(n));
+                }
+                ctx.publish(getRoot());
+            } finally {
+                ctx.lock.readLock().unlock();
+            }
+        }
+
+        // At this point we've updated everything; fire the events for this
+        // node and its children, then continue up the tree for all the parents
+        TreeMetrics metrics = ctx == null ? null : ctx.metrics;
+        int deliveries = 0;
+        if (change != null) {
+            deliveries = fireChangeTree(change, dispatcher, metrics) + fireAncestors(change, ctx, dispatcher);
+        }
+        if (metrics != null) {
+            metrics.updated(this, change, deliveries);
+        }
+    }
+
+    // fast paths for typed values, e.g. sensor samples; nothing is allocated
+    // unless the value actually changed
+    public void update(long v) {
+        if (holds(ValueType.LONG, v)) {
+            return;
+        }
+        updateValue(ValueType.LONG, v);
+    }
+
+    public void update(double v) {
+        long b = Double.doubleToLongBits(v);
+        if (holds(ValueType.DOUBLE, b)) {
+            return;
+        }
+        updateValue(ValueType.DOUBLE, b);
+    }
+
+    public void update(boolean v) {
+        long b = v ? 1 : 0;
+        if (holds(ValueType.BOOLEAN, b)) {
+            return;
+        }
+        updateValue(ValueType.BOOLEAN, b);
+    }
+
+    // whether the value is this typed value right now
+    private boolean holds(ValueType type, long b) {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                boolean same = valueType == type && bits == b;
+                if (valueSeq == seq) {
+                    return same;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private void updateValue(ValueType type, long b) {
+        if (updateHandle != null) {
+            // handlers expect to see the incoming node
+            DeviceNode n = new DeviceNode(name);
+            n.setValue(type, b, null);
+            update(n);
+            return;
+        }
+
+        TreeContext ctx = getContext();
+        EventDispatcher dispatcher = ctx == null ? EventDispatcher.SYNCHRONOUS : ctx.dispatcher;
+
+        boolean changed;
+        if (ctx == null) {
+            changed = takeValue(type, b, null);
+        } else {
+            ctx.lock.readLock().lock();
+            try {
+                changed = takeValue(type, b, null);
+                if (changed) {
+                    if (ctx.journal != null) {
+                        ctx.journal.updated(getRelativePath(), cloneShallow());
+                    }
+                    ctx.publish(getRoot());
+                }
+            } finally {
+                ctx.lock.readLock().unlock();
+            }
+        }
+
+        TreeMetrics metrics = ctx == null ? null : ctx.metrics;
+        int deliveries = changed ? fireValueChange(ctx, dispatcher, metrics) : 0;
+        if (metrics != null) {
+            metrics.updated(this, changed, deliveries);
+        }
+    }
+
+    // events for a change of this node's value. Who takes it is worked out
+    // first, subscription filters included, and event nodes are only built
+    // as far up as someone listens; a change no one takes allocates nothing
+    private int fireValueChange(TreeContext ctx, EventDispatcher dispatcher, TreeMetrics metrics) {
+        List<SubscriptionIndex.Selected> selected = null;
+        int top = -1;
+        if (ctx != null && !ctx.subscriptions.isEmpty()) {
+            selected = ctx.subscriptions.select(this);
+            if (selected != null) {
+                top = selected.get(selected.size() - 1).level;
+            }
+        }
+        int level = 0;
+        for (DeviceNode n = this; n != null; n = n.parent, level++) {
+            PropertyChangeSupport support = n.changeSupport;
+            if (support != null && support.hasListeners(PROPERTY_CHANGE_NAME)) {
+                top = Math.max(top, level);
+            }
+        }
+        if (top < 0) {
+            return 0;
+        }
+
+        // build the events from this node up, firing each at its node
+        DeviceNode[] nodes = new DeviceNode[top + 1];
+        DeviceNode[] events = new DeviceNode[top + 1];
+        int deliveries = 0;
+        DeviceNode n = this;
+        DeviceNode change = cloneShallow();
+        for (level = 0;; level++) {
+            nodes[level] = n;
+            events[level] = change;
+            deliveries += n.fire(dispatcher, change, metrics);
+            if (level == top || n.parent == null) {
+                break;
+            }
+            n = n.parent;
+            change = n.childEvent(change);
+        }
+
+        // then the subscriptions, from the root down like route()
+        if (selected != null) {
+            for (int i = selected.size() - 1; i >= 0; i--) {
+                SubscriptionIndex.Selected s = selected.get(i);
+                if (nodes[s.level] != null) {
+                    dispatcher.dispatch(nodes[s.level], s.subscription.getListener(), events[s.level]);
+                    deliveries++;
+                }
+            }
+        }
+        return deliveries;
+    }
+
+    // apply all changes of a batch as one step; readers going through get()
+    // see either none or all of them. Events are fired once the batch is in
+    // place, one merged event per affected node
+    public void apply(UpdateBatch batch) {
+        TreeContext ctx = getOrCreateContext();
+        EventDispatcher dispatcher = ctx.dispatcher;
+
+        Set<UpdateBatch.Entry> vetoed = askHandlers(batch.root, null);
+
+        DeviceNode change;
+        ctx.lock.writeLock().lock();
+        try {
+            boolean[] attributes = ctx.journal == null ? null : new boolean[1];
+            change = applyBatch(batch.root, vetoed, attributes);
+            if (attributes != null && (change != null || attributes[0])) {
+                ctx.journal.updated(getRelativePath(), journalTree(batch.root));
+            }
+            ctx.publish(getRoot());
+        } finally {
+            ctx.lock.writeLock().unlock();
+        }
+
+        TreeMetrics metrics = ctx.metrics;
+        int deliveries = 0;
+        if (change != null) {
+            deliveries = fireChangeTree(change, dispatcher, metrics) + fireAncestors(change, ctx, dispatcher);
+        }
+        if (metrics != null) {
+            metrics.updated(this, change, deliveries);
+        }
+    }
+
+    // carry the event for this node up through its ancestors, then route the
+    // resulting root event to the tree's subscriptions. Returns the number of
+    // deliveries: nodes with listeners told, plus matching subscriptions
+    private int fireAncestors(DeviceNode change, TreeContext ctx, EventDispatcher dispatcher) {
+        TreeMetrics metrics = ctx == null ? null : ctx.metrics;
+        int deliveries = 0;
+        DeviceNode top = change;
+        for (DeviceNode p = parent; p != null; p = p.parent) {
+            top = p.childEvent(top);
+            deliveries += p.fire(dispatcher, top, metrics);
+        }
+
+        // top is now the event tree for the root
+        if (ctx != null && !ctx.subscriptions.isEmpty()) {
+            deliveries += ctx.subscriptions.route(getRoot(), top, dispatcher);
+        }
+        return deliveries;
+    }
+
+    // fire an already built event tree at the nodes it describes, children
+    // before parents
+    private int fireChangeTree(DeviceNode change, EventDispatcher dispatcher, TreeMetrics metrics) {
+        int deliveries = 0;
+        for (DeviceNode c : change.getChildren().values()) {
+            DeviceNode child = getChild(c.getName());
+            if (child != null) {
+                deliveries += child.fireChangeTree(c, dispatcher, metrics);
+            }
+        }
+        return deliveries + fire(dispatcher, change, metrics);
+    }
+
+    // wrap a child's event in one for this node
+    private DeviceNode childEvent(DeviceNode n) {
+
+        // this node will be the root node for the event
+        DeviceNode change = this.cloneShallow();
+
+        // add child event
+        try {
+            change.addChild(n);
+        } catch (Exception ex) {
+            // we just made this child; it'll always have a null parent
+        }
+
+        return change;
+    }
+
+    // call the update handler, timing it if metrics are on
+    private boolean handleUpdate(DeviceNode n) {
+        TreeMetrics metrics = getMetrics();
+        if (metrics == null) {
+            return updateHandle.handle(n);
+        }
+        long start = System.nanoTime();
+        try {
+            return updateHandle.handle(n);
+        } finally {
+            metrics.updateHandler.record(System.nanoTime() - start);
+        }
+    }
+
+    // call the update handlers of the nodes an incoming tree reaches, the
+    // way updateNode() would, before any lock is taken: a handler may then
+    // use the tree freely, apply() included, and a slow one holds up no one.
+    // Returns the incoming nodes turned down, or null if none were. A node
+    // that gains a handler after this takes the update unasked
+    private Set<DeviceNode> askHandlers(DeviceNode n, Set<DeviceNode> vetoed) {
+        // sameSubtree() brings handledBelow up to date
+        if (!n.getName().equalsIgnoreCase(this.name) || sameSubtree(n) || !handledBelow) {
+            return vetoed;
+        }
+        if (updateHandle != null && !handleUpdate(n)) {
+            if (vetoed == null) {
+                vetoed = Collections.newSetFromMap(new IdentityHashMap<DeviceNode, Boolean>());
+            }
+            vetoed.add(n);
+        }
+        for (DeviceNode c : n.getChildren().values()) {
+            DeviceNode child = getChild(c.getName());
+            // a child yet to be added has no handler
+            if (child != null) {
+                vetoed = child.askHandlers(c, vetoed);
+            }
+        }
+        return vetoed;
+    }
+
+    // the same for a batch
+    private Set<UpdateBatch.Entry> askHandlers(UpdateBatch.Entry e, Set<UpdateBatch.Entry> vetoed) {
+        if (updateHandle != null && !handleUpdate(e.toNode(this.name))) {
+            if (vetoed == null) {
+                vetoed = Collections.newSetFromMap(new IdentityHashMap<UpdateBatch.Entry, Boolean>());
+            }
+            vetoed.add(e);
+        }
+        for (UpdateBatch.Entry ce : e.children.values()) {
+            DeviceNode child = getChild(ce.name);
+            if (child != null) {
+                vetoed = child.askHandlers(ce, vetoed);
+            }
+        }
+        return vetoed;
+    }
+
+    // do not use this one; builds the event tree without firing. vetoed
+    // holds what askHandlers() found; attributes, if given, is set once any
+    // node's attributes changed
+    private DeviceNode updateNode(DeviceNode n, Set<DeviceNode> vetoed, boolean[] attributes) {
+        // keep track if anything changed and should fire event
+        DeviceNode changeEvent = null;
+
+        // make sure it's this node; if the incoming subtree is what this
+        // one already holds, nothing below can change
+        if (n.getName().equalsIgnoreCase(this.name) && !sameSubtree(n)) {
+
+            // the update handler, if any, was asked already
+            boolean handleHere = vetoed == null || !vetoed.contains(n);
+            if (handleHere) {
+                // update attributes
+                if (mergeAttributes(n.getAttributes()) && attributes != null) {
+                    attributes[0] = true;
+                }
+
+                // set value, if needed
+                if (takeValueOf(n)) {
+                    changeEvent = this.cloneShallow();
+                }
+            }
+
+            Iterator<String> i = n.getChildren().keySet().iterator();
+
+            // merge children; update or add
+            while (i.hasNext()) {
+                String s = i.next();
+                boolean added = false;
+
+                // if child does not exist yet, add it
+                if (!this.getChildren().containsKey(s)) {
+                    attachChild(n.getChild(s).cloneShallow());
+                    added = true;
+                }
+
+                if (this.getChildren().containsKey(s)) {
+                    // update child
+                    DeviceNode childUpdate = this.getChild(s).updateNode(n.getChild(s), vetoed, attributes);
+
+                    // either updated child or added (if added, won't get childUpdate)
+                    if (childUpdate != null || added) {
+                        if (changeEvent == null) {
+                            changeEvent = this.cloneShallow();
+                        }
+                        // add the child update if there was one
+                        if (childUpdate != null) {
+                            try {
+                                changeEvent.addChild(childUpdate);
+                            } catch (Exception ex) {
+                                // we just made this child; it'll always have a null parent
+                            }
+                        } // if the child was added, but no grandchildren changed, still fire event
+                        else {
+                            try {
+                                changeEvent.addChild(n.getChild(s).cloneShallow());
+                            } catch (Exception ex) {
+                                // we just made this child; it'll always have a null parent
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return changeEvent;
+    }
+
+    // whether updating this node with n can't change anything: the same
+    // content all the way down, and no update handler that wants to see it
+    private boolean sameSubtree(DeviceNode n) {
+        return getSubtreeHash() == n.getSubtreeHash() && !handledBelow;
+    }
+
+    // batch counterpart of updateNode(); builds the event tree without firing
+    private DeviceNode applyBatch(UpdateBatch.Entry e, Set<UpdateBatch.Entry> vetoed, boolean[] attributes) {
+        DeviceNode changeEvent = null;
+
+        // the update handler, if any, was asked already
+        boolean handleHere = vetoed == null || !vetoed.contains(e);
+        if (handleHere) {
+            // update attributes
+            if (e.attributes != null && mergeAttributes(e.attributes) && attributes != null) {
+                attributes[0] = true;
+            }
+
+            // set value, if needed
+            if (e.valueType != null && takeValue(e.valueType, e.bits, e.value)) {
+                changeEvent = this.cloneShallow();
+            }
+        }
+
+        for (UpdateBatch.Entry ce : e.children.values()) {
+            DeviceNode child = this.getChild(ce.name);
+            boolean added = false;
+
+            // if child does not exist yet, add it
+            if (child == null) {
+                child = new DeviceNode(ce.name);
+                attachChild(child);
+                added = true;
+            }
+
+            DeviceNode childUpdate = child.applyBatch(ce, vetoed, attributes);
+
+            if (childUpdate != null || added) {
+                if (changeEvent == null) {
+                    changeEvent = this.cloneShallow();
+                }
+                try {
+                    changeEvent.addChild(childUpdate != null ? childUpdate : child.cloneShallow());
+                } catch (Exception ex) {
+                    // we just made this child; it'll always have a null parent
+                }
+            }
+        }
+
+        return changeEvent;
+    }
+
+    // the nodes a batch touched, as they are now; nodes the batch created
+    // along the way come out exactly as applyBatch() made them
+    private DeviceNode journalTree(UpdateBatch.Entry e) {
+        DeviceNode n = cloneShallow();
+        for (UpdateBatch.Entry ce : e.children.values()) {
+            DeviceNode child = getChild(ce.name);
+            if (child != null) {
+                try {
+                    n.addChild(child.journalTree(ce));
+                } catch (Exception ex) {
+                    // we just made this child; it'll always have a null parent
+                }
+            }
+        }
+        return n;
+    }
+
+    // the same for an incoming tree: what it touched as it is now, so values
+    // an update handler turned down are logged as the node kept them
+    private DeviceNode journalTree(DeviceNode incoming) {
+        DeviceNode n = cloneShallow();
+        for (DeviceNode c : incoming.getChildren().values()) {
+            DeviceNode child = getChild(c.getName());
+            if (child != null) {
+                try {
+                    n.addChild(child.journalTree(c));
+                } catch (Exception ex) {
+                    // we just made this child; it'll always have a null parent
+                }
+            }
+        }
+        return n;
+    }
+
+    // takeValue() with the value of another node, read consistently
+    private boolean takeValueOf(DeviceNode n) {
+        for (;;) {
+            int seq = n.valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = n.valueType;
+                long b = n.bits;
+                String v = n.value;
+                if (n.valueSeq == seq) {
+                    return takeValue(t, b, v);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // take over an incoming value if it differs from this one; returns true
+    // if it did. Incoming text (null meaning "leave alone") is parsed when
+    // this node holds a typed value, so text updates keep the node typed
+    private boolean takeValue(ValueType type, long b, String text) {
+        if (type == ValueType.STRING && text == null) {
+            return false;
+        }
+
+        // compare and set as one step, so two writers can't both decide the
+        // value changed from the same old one
+        int seq = beginValueWrite();
+        try {
+            if (type == ValueType.STRING && valueType != ValueType.STRING) {
+                try {
+                    type = valueType;
+                    b = valueType.parse(text);
+                    text = null;
+                } catch (NumberFormatException ex) {
+                    // no longer a number; store it as text
+                    type = ValueType.STRING;
+                }
+            }
+
+            if (type == valueType) {
+                if (type == ValueType.STRING ? text.equals(value) : b == bits) {
+                    return false;
+                }
+            } else if (valueType == ValueType.STRING && type.format(b).equals(value)) {
+                // same text; keep it as it is
+                return false;
+            }
+
+            writeValue(type, b, text);
+        } finally {
+            endValueWrite(seq);
+        }
+        contentChanged();
+
+        HistoryBuffer h = history;
+        if (h != null) {
+            h.record(type, b, text);
+        }
+        return true;
+    }
+
+    // whether the attributes changed
+    private boolean mergeAttributes(Map<String, String> incoming) {
+        AttributeSet current;
+        AttributeSet next;
+        do {
+            current = attributes;
+            next = current.withAll(incoming);
+        } while (next != current && !ATTRIBUTES.compareAndSet(this, current, next));
+        // sets are interned, so an unchanged set comes back as the same instance
+        if (next == current) {
+            return false;
+        }
+        contentChanged();
+        attributesChanged(current, next);
+        return true;
+    }
+
+    // shallow clone, mostly for event generation purposes; the clone shares
+    // this node's attribute set
+    public DeviceNode cloneShallow() {
+        // takes this node's interned name and hash; no need to work them out again
+        DeviceNode n = new DeviceNode(name, nameHash);
+        copyValueTo(n);
+        n.attributes = attributes;
+        return n;
+    }
+
+    private void copyValueTo(DeviceNode n) {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    n.setValue(t, b, v);
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // deep copy of this node's value, attributes and children; handlers and
+    // listeners are not copied
+    public DeviceNode cloneDeep() {
+        return cloneDeep(this.getName());
+    }
+
+    // deep copy under another name, e.g. to stamp out the devices an "ids"
+    // attribute repeats from one template subtree. The copy shares all the
+    // template's immutable parts: names, values and attribute sets; only
+    // the nodes themselves are new, since each needs its own parent and
+    // change state. A copied node only gets a value or attribute set of its
+    // own once one is changed, like any other node
+    public DeviceNode cloneDeep(String name) {
+        DeviceNode n = new DeviceNode(name);
+        copyTreeTo(n, latestVersion());
+        return n;
+    }
+
+    // for copies and DeviceTreeBuilder: the name is interned and hashed already
+    DeviceNode(String name, long nameHash) {
+        this.name = name;
+        this.nameHash = nameHash;
+    }
+
+    // the copy isn't reachable by anyone else yet, so it is set up like a
+    // tree being built (see initValue()), with one version for all of it
+    private void copyTreeTo(DeviceNode n, long v) {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String text = value;
+                if (valueSeq == seq) {
+                    n.initValue(t, b, text);
+                    break;
+                }
+            }
+            Thread.yield();
+        }
+        n.initAttributes(attributes);
+        n.initVersion(v);
+        for (DeviceNode child : children.values()) {
+            DeviceNode c = new DeviceNode(child.name, child.nameHash);
+            child.copyTreeTo(c, v);
+            n.initChild(c, v);
+        }
+    }
+
+    // the init methods set up nodes no one else can reach yet, for
+    // DeviceTreeBuilder and copies: fields are written directly, without
+    // the sequence lock, change tracking and attach bookkeeping of a live
+    // tree. A new node is dirty and its hash stale already
+    void initValue(ValueType type, long b, String text) {
+        writeValue(type, b, text);
+    }
+
+    void initAttributes(AttributeSet set) {
+        attributes = set;
+    }
+
+    void initVersion(long v) {
+        version = v;
+        subtreeVersion = v;
+    }
+
+    void initChild(DeviceNode child, long v) {
+        DeviceNode previous = ownChildren().put(child.name, child);
+        if (previous != null && previous != child) {
+            previous.parent = null;
+        }
+        child.parent = this;
+        child.attachedVersion = v;
+        if (child.subtreeVersion > subtreeVersion) {
+            subtreeVersion = child.subtreeVersion;
+        }
+    }
+
+    // using this will NOT fire an event, use update() for that
+    public void setValue(String value) {
+        setValue(ValueType.STRING, 0, value);
+    }
+
+    public void setValue(long value) {
+        setValue(ValueType.LONG, value, null);
+    }
+
+    public void setValue(double value) {
+        setValue(ValueType.DOUBLE, Double.doubleToLongBits(value), null);
+    }
+
+    public void setValue(boolean value) {
+        setValue(ValueType.BOOLEAN, value ? 1 : 0, null);
+    }
+
+    // parse text as the given type, e.g. from a type="int" attribute; keeps
+    // the text as is if it doesn't parse
+    public void setValue(String text, ValueType type) {
+        if (type != ValueType.STRING && text != null) {
+            try {
+                setValue(type, type.parse(text), null);
+                return;
+            } catch (NumberFormatException ex) {
+                // fall through to plain text
+            }
+        }
+        setValue(text);
+    }
+
+    void setValue(ValueType type, long b, String text) {
+        int seq = beginValueWrite();
+        try {
+            writeValue(type, b, text);
+        } finally {
+            endValueWrite(seq);
+        }
+        contentChanged();
+    }
+
+    // only between beginValueWrite() and endValueWrite()
+    private void writeValue(ValueType type, long b, String text) {
+        this.valueType = type;
+        this.bits = type == ValueType.STRING ? 0 : b;
+        this.value = type == ValueType.STRING ? text : null;
+    }
+
+    // take the value's sequence lock; writers of one node's value are rare
+    // enough to just spin
+    private int beginValueWrite() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0 && VALUE_SEQ.compareAndSet(this, seq, seq + 1)) {
+                return seq + 1;
+            }
+            Thread.yield();
+        }
+    }
+
+    private void endValueWrite(int seq) {
+        valueSeq = seq + 1;
+    }
+
+    // text form of the value; typed values are formatted on each call, use
+    // the typed getters to avoid that
+    @Override
+    public String getValue() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    return t == ValueType.STRING ? v : t.format(b);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public ValueType getValueType() {
+        return valueType;
+    }
+
+    @Override
+    public long getLongValue() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    return t.asLong(b, v);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public double getDoubleValue() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    return t.asDouble(b, v);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public boolean getBooleanValue() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    return t.asBoolean(b, v);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // should only be used internally; add/remove child methods should be used
+    // parents are no longer registered as listeners of their children;
+    // fireAncestors() carries events up the tree directly
+    protected void setParent(DeviceNode parent) {
+        this.parent = parent;
+    }
+
+    public void removeChild(String name) {
+        // one lookup; another thread may remove it in between two
+        DeviceNode child = children.get(name);
+        if (child != null) {
+            removeChild(child);
+        }
+    }
+
+    public void removeChild(DeviceNode child) {
+        TreeContext ctx = getContext();
+        if (ctx == null) {
+            detachChild(child);
+            return;
+        }
 
-        // loop through all children 
-        while (i.hasNext()) {
-            String s = i.next();
-            if (this.getChildren().containsKey(s)) {
-                try {
-                    ret.addChild(this.getChild(s).get());
-                } catch (Exception ex) {
-                    Logger.getLogger(DeviceNode.class.getName()).log(Level.SEVERE, null, ex);
+        ctx.lock.readLock().lock();
+        try {
+            if (detachChild(child)) {
+                if (ctx.journal != null) {
+                    ctx.journal.childRemoved(getRelativePath(), child.getName());
                 }
+                ctx.publish(getRoot());
             }
+        } finally {
+            ctx.lock.readLock().unlock();
         }
-        
-        return ret;
     }
 
-    public void set(DeviceNode n) {
+    public void addChild(DeviceNode child) throws Exception {
+        if (child.getParent() != null) {
+            throw new Exception("Child " + child.getName() + " already has parent " + child.getParent().getName());
+        }
 
-        // make sure it's this node
-        if (n.getName().equalsIgnoreCase(this.name)) {
+        TreeContext ctx = getContext();
+        if (ctx == null) {
+            attachChild(child);
+            return;
+        }
 
-            // fire setHandle, if it's attached
-            if (this.setHandle != null) {
-                setHandle.handle(n);
+        ctx.lock.readLock().lock();
+        try {
+            attachChild(child);
+            if (ctx.journal != null) {
+                ctx.journal.childAdded(getRelativePath(), child);
             }
+            ctx.publish(getRoot());
+        } finally {
+            ctx.lock.readLock().unlock();
+        }
+    }
 
-            Iterator<String> i = n.getChildren().keySet().iterator();
-
-            // loop through all children 
-            while (i.hasNext()) {
-                String s = i.next();
-                if (this.getChildren().containsKey(s)) {
-                    this.getChild(s).set(n.getChild(s));
+    // add a child that is known to have no parent, without locking or publishing
+    private void attachChild(DeviceNode child) {
+        child.setParent(this);
+
+        DeviceNode previous = ownChildren().put(child.getName(), child);
+        structureChanged = true;
+        markDirty();
+        markHashStale();
+        long v = CLOCK.get();
+        for (;;) {
+            if (previous != null && previous != child) {
+                // replaced a child of the same name
+                previous.parent = null;
+                SubscriptionIndex.Matches m = previous.matches;
+                if (m != null) {
+                    m.index.removed(previous);
                 }
+                tombstone(previous.getName(), v);
+            }
+            child.attachedVersion = v;
+            raiseSubtreeVersion(v);
+            long again = CLOCK.get();
+            if (again == v) {
+                break;
             }
+            v = again;
         }
+        if (previous != null && previous != child) {
+            reindexTree(previous);
+            countNodes(previous, false);
+        }
+        reindexTree(child);
+        countNodes(child, true);
     }
 
-    // update to be called from external classes; this calls the recursive loop
-    // to update all the children (if applicable) and fire the aggregated events
-    public void update(DeviceNode n) {
-
-        // do recursive update & fire events as needed
-        DeviceNode change = updateNode(n);
-
-        // At this point we've updated everything and the end of update() fired
-        // a change event for this node (if any); if there was a change, continue
-        // up the tree for all the parents
-        if (change != null) {
+    // this node's children map, made on first use
+    private ConcurrentMap<String, DeviceNode> ownChildren() {
+        ConcurrentMap<String, DeviceNode> c = children;
+        if (c == NO_CHILDREN) {
+            CHILDREN.compareAndSet(this, NO_CHILDREN, new ConcurrentHashMap<String, DeviceNode>());
+            c = children;
+        }
+        return c;
+    }
 
-            if (parent != null) {
-                parent.childEventFired(change);
+    private boolean detachChild(DeviceNode child) {
+        // remove the child; its subtree goes with it since paths are
+        // resolved through the children maps
+        if (children.remove(child.getName(), child)) {
+            child.parent = null;
+            SubscriptionIndex.Matches m = child.matches;
+            if (m != null) {
+                // paths below the child no longer hold
+                m.index.removed(child);
+            }
+            structureChanged = true;
+            markDirty();
+            markHashStale();
+            long v = CLOCK.get();
+            for (;;) {
+                tombstone(child.getName(), v);
+                raiseSubtreeVersion(v);
+                long again = CLOCK.get();
+                if (again == v) {
+                    break;
+                }
+                v = again;
             }
+            reindexTree(child);
+            countNodes(child, false);
+            return true;
         }
+        return false;
     }
 
-    private void childEventFired(DeviceNode n) {
-
-        // this node will be the root node for the event
-        DeviceNode change = this.cloneShallow();
-
-        // add child event
-        try {
-            change.addChild(n);
-        } catch (Exception ex) {
-            // we just made this child; it'll always have a null parent
+    // refile a subtree that came into or left the tree in its indexes
+    private void reindexTree(DeviceNode subtree) {
+        TreeContext ctx = getContext();
+        if (ctx != null && !ctx.indexes.isEmpty()) {
+            for (AttributeIndex index : ctx.indexes.values()) {
+                index.refreshTree(subtree);
+            }
         }
+    }
 
-        // fire event
-        changeSupport.firePropertyChange(PROPERTY_CHANGE_NAME, null, change);
+    // keep the node count of the tree's metrics as a subtree comes or goes;
+    // the subtree is only walked while there are metrics
+    private void countNodes(DeviceNode subtree, boolean added) {
+        TreeContext ctx = getContext();
+        TreeMetrics metrics = ctx == null ? null : ctx.metrics;
+        if (metrics != null) {
+            int n = TreeMetrics.count(subtree);
+            metrics.nodes.add(added ? n : -n);
+        }
+    }
 
-        // notify parent, if applicable
-        if (parent != null) {
-            parent.childEventFired(change);
+    // refile this node in the indexes on attributes that changed
+    private void attributesChanged(AttributeSet before, AttributeSet after) {
+        TreeContext ctx = getContext();
+        if (ctx != null && !ctx.indexes.isEmpty()) {
+            for (AttributeIndex index : ctx.indexes.values()) {
+                String was = before.get(index.attribute);
+                String now = after.get(index.attribute);
+                if (was == null ? now != null : !was.equals(now)) {
+                    index.refresh(this);
+                }
+            }
         }
     }
 
-    // do not use this one
-    private DeviceNode updateNode(DeviceNode n) {
-        // keep track if anything changed and should fire event
-        DeviceNode changeEvent = null;
+    boolean isDirty() {
+        return dirty;
+    }
 
-        // make sure it's this node
-        if (n.getName().equalsIgnoreCase(this.name)) {
+    // this node's own value or attributes changed
+    private void contentChanged() {
+        markDirty();
+        markHashStale();
+        stamp();
+    }
 
-            boolean handleHere = true;
-            // fire updateHandle, if it's attached
-            if (this.updateHandle != null) {
-                handleHere = updateHandle.handle(n);
+    // give this node's content the current version, and carry it up. The
+    // clock is read again afterwards: if someone took the current version
+    // in between, they may have looked at this node before the change was
+    // stamped, so it is stamped again with the newer version. A change is
+    // thus seen as newer than any version handed out before it was finished
+    private void stamp() {
+        long v = CLOCK.get();
+        for (;;) {
+            version = v;
+            raiseSubtreeVersion(v);
+            long again = CLOCK.get();
+            if (again == v) {
+                return;
             }
-            if (handleHere) {
-                // update attributes
-                this.getAttributes().putAll(n.getAttributes());
-
-                // set value, if needed
-                if (n.getValue() != null) {
-                    if (!this.value.equals(n.getValue())) {
-                        this.setValue(n.getValue());
+            v = again;
+        }
+    }
 
-                        if (changeEvent == null) {
-                            changeEvent = this.cloneShallow();
-                        }
-                    }
+    private void raiseSubtreeVersion(long v) {
+        for (DeviceNode n = this; n != null; n = n.parent) {
+            long current;
+            do {
+                current = n.subtreeVersion;
+                if (current >= v) {
+                    // a later change already went up from here
+                    return;
                 }
-            }
+            } while (!SUBTREE_VERSION.compareAndSet(n, current, v));
+        }
+    }
 
-            Iterator<String> i = n.getChildren().keySet().iterator();
+    private void tombstone(String childName, long v) {
+        Tombstones r = removed;
+        if (r == null) {
+            REMOVED.compareAndSet(this, null, new Tombstones());
+            r = removed;
+        }
+        r.add(childName, v);
+    }
 
-            // merge children; update or add
-            while (i.hasNext()) {
-                String s = i.next();
-                boolean added = false;
+    // the latest modification version handed out so far: changes finished
+    // before the call have it or an older one, later changes a newer one
+    public static long currentVersion() {
+        return CLOCK.getAndIncrement();
+    }
 
-                // if child does not exist yet, add it
-                if (!this.getChildren().containsKey(s)) {
-                    try {
-                        this.addChild(n.getChild(s).cloneShallow());
-                    } catch (Exception ex) {
-                        // we just made this child; it'll always have a null parent
-                    }
-                    added = true;
-                }
+    // the clock as it is, without moving it on; for versions given to new
+    // nodes no one has seen
+    static long latestVersion() {
+        return CLOCK.get();
+    }
 
-                if (this.getChildren().containsKey(s)) {
-                    // update child
-                    DeviceNode childUpdate = this.getChild(s).updateNode(n.getChild(s));
+    // when this node's value or attributes last changed
+    public long getVersion() {
+        return version;
+    }
 
-                    // either updated child or added (if added, won't get childUpdate)
-                    if (childUpdate != null || added) {
-                        if (changeEvent == null) {
-                            changeEvent = this.cloneShallow();
-                        }
-                        // add the child update if there was one
-                        if (childUpdate != null) {
-                            try {
-                                changeEvent.addChild(childUpdate);
-                            } catch (Exception ex) {
-                                // we just made this child; it'll always have a null parent
-                            }
-                        } // if the child was added, but no grandchildren changed, still fire event
-                        else {
-                            try {
-                                changeEvent.addChild(n.getChild(s).cloneShallow());
-                            } catch (Exception ex) {
-                                // we just made this child; it'll always have a null parent
-                            }
-                        }
-                    }
+    // the latest change anywhere in this node's subtree
+    public long getSubtreeVersion() {
+        return subtreeVersion;
+    }
+
+    // what changed below the node at path (relative to this one, "" for this
+    // node) after the given version: a tree of changed nodes plus the paths of
+    // removed ones. Pass the returned version next time; changes made while
+    // the delta is collected may show up twice but are never missed
+    // the same, as a resync: if removals after since were forgotten (see
+    // MAX_TOMBSTONES), the delta holds all of the subtree instead and says
+    // so, and the copy is to be replaced rather than updated
+    public NodeDelta changesSince(String path, long since) {
+        long now = currentVersion();
+        DeviceNode node = path == null || path.isEmpty() ? this : getChildByPath(path);
+
+        List<String> removedPaths = new ArrayList<>();
+        DeviceNode changes = null;
+        if (node != null) {
+            if (node.attachedVersion > since) {
+                changes = node.cloneDeep();
+            } else {
+                try {
+                    changes = node.delta(since, "", removedPaths);
+                } catch (ResyncRequired ex) {
+                    return new NodeDelta(now, node.cloneDeep(), Collections.<String>emptyList(), true);
                 }
             }
         }
+        return new NodeDelta(now, changes, removedPaths, false);
+    }
 
-        // fire event for this node if it or any children changed
-        if (changeEvent != null) {
-            changeSupport.firePropertyChange(PROPERTY_CHANGE_NAME, null, changeEvent);
+    // keep the last capacity values the node at path (relative to this one,
+    // "" for this node) takes through update() and apply(), with the time
+    // they arrived. Returns false if there is no such node. The history
+    // belongs to that node; it is lost if the node is removed
+    public boolean trackHistory(String path, int capacity) {
+        DeviceNode node = path == null || path.isEmpty() ? this : getChildByPath(path);
+        if (node == null) {
+            return false;
         }
-
-        return changeEvent;
+        HistoryBuffer h = node.history;
+        if (h == null || h.getCapacity() != capacity) {
+            node.history = new HistoryBuffer(capacity);
+        }
+        return true;
     }
 
-    // shallow clone, mostly for event generation purposes
-    public DeviceNode cloneShallow() {
-        DeviceNode n = new DeviceNode(this.getName());
-        n.setValue(this.value);
-        for (String str : this.getAttributes().keySet()) {
-            n.addAttribute(str, this.getAttribute(str));
+    public void untrackHistory(String path) {
+        DeviceNode node = path == null || path.isEmpty() ? this : getChildByPath(path);
+        if (node != null) {
+            node.history = null;
         }
-        return n;
     }
 
-    // using this will NOT fire an event, use update() for that
-    public void setValue(String value) {
-        this.value = value;
+    // values the node at path took with from <= time < to (milliseconds since
+    // the epoch), none if to <= from; null if it isn't tracked
+    public HistorySeries history(String path, long from, long to) {
+        HistoryBuffer h = historyAt(path);
+        return h == null ? null : h.range(from, to);
     }
 
-    public String getValue() {
-        return value;
+    // the same, as min/max/average per bucket of width milliseconds
+    public HistoryBuckets history(String path, long from, long to, long width) {
+        HistoryBuffer h = historyAt(path);
+        return h == null ? null : h.downsample(from, to, width);
     }
 
-    // should only be used internally; add/remove child methods should be used
-    protected void setParent(DeviceNode parent) {
-        this.parent = parent;
-        this.changeSupport.addPropertyChangeListener(parent);
+    private HistoryBuffer historyAt(String path) {
+        DeviceNode node = path == null || path.isEmpty() ? this : getChildByPath(path);
+        return node == null ? null : node.history;
     }
 
-    public void removeChild(String name) {
-        if (children.containsKey(name)) {
-            removeChild(children.get(name));
+    // changed nodes carry their value and attributes; nodes that are only on
+    // the way to a change have a null value, so the delta can be passed to
+    // update() as it is
+    private DeviceNode delta(long since, String path, List<String> removedPaths) throws ResyncRequired {
+        if (subtreeVersion <= since) {
+            return null;
         }
-    }
 
-    public void removeChild(DeviceNode child) {
-        if (children.containsValue(child)) {
-            // remove this listener
-            child.changeSupport.removePropertyChangeListener(this);
-            // remove the child
-            synchronized (children) {
-                children.remove(child.getName());
-            }
-            String path = "/" + child.getName();
+        DeviceNode d;
+        if (version > since) {
+            d = cloneShallow();
+        } else {
+            d = new DeviceNode(name);
+            d.setValue((String) null);
+        }
 
-            // deregister the child tree
-            deregisterByPrefix(path);
+        Tombstones r = removed;
+        if (r != null) {
+            for (Map.Entry<String, Long> tomb : r.byName.entrySet()) {
+                if (tomb.getValue() > since) {
+                    removedPaths.add(path + "/" + tomb.getKey());
+                }
+            }
+            // read after the entries; a prune drops them only after raising it
+            if (r.prunedUpTo > since) {
+                throw new ResyncRequired();
+            }
+        }
 
-            // deregister from grandparent trees
-            parent.deregisterGrandchild("/" + this.name + path);
+        for (DeviceNode c : children.values()) {
+            DeviceNode cd;
+            if (c.attachedVersion > since) {
+                // new since then; send all of it
+                cd = c.cloneDeep();
+            } else {
+                cd = c.delta(since, path + "/" + c.getName(), removedPaths);
+            }
+            if (cd != null) {
+                d.attachChild(cd);
+            }
         }
+        return d;
     }
 
-    public void addChild(DeviceNode child) throws Exception {
-        if (child.getParent() == null) {
-            child.setParent(this);
-        } else {
-            throw new Exception("Child " + child.getName() + " already has parent " + child.getParent().getName());
+    // 64-bit hash of this node's name, value and attributes and, through
+    // theirs, of all its descendants; equal trees have equal hashes. Child
+    // hashes are added up, so the order of children doesn't matter. Only
+    // the parts changed since the last call are hashed again. Usable as a
+    // version tag of the subtree's content, see getETag()
+    public long getSubtreeHash() {
+        // the stamp is taken before the content is read, so a change made
+        // meanwhile moves it past the one the result is stored with
+        int stamp;
+        for (;;) {
+            stamp = hashStamp;
+            if ((stamp & 1) == 0) {
+                if (hashValidFor == stamp) {
+                    return subtreeHash;
+                }
+                // someone else is working it out as well
+                break;
+            }
+            if (HASH_STAMP.compareAndSet(this, stamp, stamp + 1)) {
+                stamp++;
+                break;
+            }
         }
-
-        synchronized (children) {
-            this.children.put(child.getName(), child);
+        long h = contentHash();
+        boolean handled = updateHandle != null;
+        for (DeviceNode c : children.values()) {
+            h += Hashing.mix(c.getSubtreeHash());
+            handled |= c.handledBelow;
         }
-
-        synchronized (allChildren) {
-            // first register this child
-            String cPath = "/" + child.getName();
-            this.allChildren.put(cPath, child);
-
-            // recurse up adding child (grandchild)
-            if (parent != null) {
-                parent.registerGrandchild(cPath, this.name, child);
+        synchronized (this) {
+            // a change since the stamp was read leaves the result unused;
+            // the hash, the flag and the stamp go in together, so a slow
+            // reader can't store an old hash over a newer one
+            if (hashStamp == stamp) {
+                subtreeHash = h;
+                handledBelow = handled;
+                hashValidFor = stamp;
             }
+        }
+        return h;
+    }
 
-            // add this child's grandchildren
-            for (String gcKey : child.getAllChildren().keySet()) {
-                String gcPath = cPath + gcKey;
-                DeviceNode grandchild = child.getAllChildren().get(gcKey);
-
-                // register here
-                this.allChildren.put(gcPath, grandchild);
+    // the subtree hash as an HTTP entity tag, e.g. for conditional gets of
+    // the serialized subtree: if the tag a client has is still the node's,
+    // its copy is current
+    public String getETag() {
+        return '"' + Long.toHexString(getSubtreeHash()) + '"';
+    }
 
-                // recurse up adding grandchild
-                if (parent != null) {
-                    parent.registerGrandchild(gcPath, this.name, grandchild);
+    private long contentHash() {
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                ValueType t = valueType;
+                long b = bits;
+                String v = value;
+                if (valueSeq == seq) {
+                    long h = Hashing.combine(nameHash, t.ordinal());
+                    h = Hashing.combine(h, t == ValueType.STRING ? Hashing.string(v) : b);
+                    return Hashing.combine(h, attributes.longHash());
                 }
             }
+            Thread.yield();
         }
     }
 
-    protected void deregisterGrandchild(String path) {
-
-        // path will contain /child/grandchild
-        if (allChildren.containsKey(path)) {
-            deregisterByPrefix(path);
-
-            if (parent != null) {
-                path = "/" + this.name + path;
-                parent.deregisterGrandchild(path);
+    // like markDirty(), for the subtree hash: makes the stamps on the path
+    // up odd, and stops at the first that is odd already. No one has started
+    // on that node's hash since, and whoever does will find this change; a
+    // reader already working one out finds an even stamp, which is moved on
+    // so that it doesn't store what it found
+    private void markHashStale() {
+        DeviceNode n = this;
+        while (n != null) {
+            int stamp = n.hashStamp;
+            if ((stamp & 1) != 0) {
+                return;
+            }
+            if (HASH_STAMP.compareAndSet(n, stamp, stamp + 1)) {
+                n = n.parent;
             }
         }
     }
 
-    protected void deregisterByPrefix(String prefix) {
-        // remove all references
-        synchronized (allChildren) {
-            Iterator<String> i = allChildren.keySet().iterator();
+    // flag this node and its ancestors for the next snapshot publication;
+    // stops at the first ancestor that is already flagged
+    private void markDirty() {
+        for (DeviceNode n = this; n != null && !n.dirty; n = n.parent) {
+            n.dirty = true;
+        }
+    }
 
-            while (i.hasNext()) {
-                String next = i.next();
-                if (next.startsWith(prefix)) {
-                    i.remove();
+    // bring the cached snapshot of this node up to date, copying only dirty
+    // nodes; called by TreeContext while holding its publish lock
+    NodeSnapshot buildSnapshot(long version) {
+        NodeSnapshot old = snapshot;
+        if (!dirty && old != null) {
+            return old;
+        }
+        // clear the flag before reading, so a concurrent change re-flags
+        dirty = false;
+
+        NodeSnapshot[] kids = null;
+        if (old != null && !structureChanged) {
+            kids = rebuildChildren(old.children(), version);
+        }
+        if (kids == null) {
+            structureChanged = false;
+            List<NodeSnapshot> list = new ArrayList<>(children.size());
+            for (DeviceNode c : children.values()) {
+                list.add(c.buildSnapshot(version));
+            }
+            kids = NodeSnapshot.sorted(list);
+        }
+
+        ValueType t;
+        long b;
+        String v;
+        for (;;) {
+            int seq = valueSeq;
+            if ((seq & 1) == 0) {
+                t = valueType;
+                b = bits;
+                v = value;
+                if (valueSeq == seq) {
+                    break;
                 }
             }
+            Thread.yield();
         }
+
+        // attribute sets are immutable, so the snapshot shares this node's
+        NodeSnapshot s = new NodeSnapshot(name, v, t, b, attributes, kids, version);
+        snapshot = s;
+        return s;
     }
 
-    protected void registerGrandchild(String path, String childName, DeviceNode n) {
-        synchronized (allChildren) {
-            path = "/" + childName + path;
-            allChildren.put(path, n);
+    // same children as last time; replace the ones that changed. Returns null
+    // if the set of children turns out to be different after all
+    private NodeSnapshot[] rebuildChildren(NodeSnapshot[] previous, long version) {
+        if (previous.length != children.size()) {
+            return null;
         }
-
-        if (parent != null) {
-            parent.registerGrandchild(path, this.name, n);
+        NodeSnapshot[] kids = previous;
+        for (int i = 0; i < previous.length; i++) {
+            DeviceNode c = children.get(previous[i].getName());
+            if (c == null) {
+                return null;
+            }
+            NodeSnapshot s = c.buildSnapshot(version);
+            if (s != previous[i]) {
+                if (kids == previous) {
+                    kids = previous.clone();
+                }
+                kids[i] = s;
+            }
         }
+        return kids;
     }
 
     public DeviceNode getParent() {
         return parent;
     }
 
+    // path is relative to this node, e.g. "/child/grandchild"; walks one
+    // children map per path segment
     public DeviceNode getChildByPath(String path) {
-        if (allChildren.containsKey(path)) {
-            return allChildren.get(path);
-        } else {
+        if (path == null || !path.startsWith("/")) {
             return null;
         }
+
+        DeviceNode node = this;
+        int start = 1;
+        while (node != null) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end == start) {
+                // empty segment ("/", "//" or a trailing "/")
+                return null;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (end == path.length()) {
+                return node;
+            }
+            start = end + 1;
+        }
+        return null;
     }
 
-    // read-only; adding should go through addChild()
+    // read-only copy of every descendant keyed by its path relative to this
+    // node; built on demand, adding should go through addChild()
     public Map<String, DeviceNode> getAllChildren() {
-        return Collections.unmodifiableMap(allChildren);
+        Map<String, DeviceNode> all = new LinkedHashMap<>();
+        collectChildren("", all);
+        return Collections.unmodifiableMap(all);
+    }
+
+    private void collectChildren(String prefix, Map<String, DeviceNode> all) {
+        for (DeviceNode child : children.values()) {
+            String path = prefix + "/" + child.getName();
+            all.put(path, child);
+            child.collectChildren(path, all);
+        }
     }
 
-    // read-only; adding should go through addChild()
+    // read-only live view; adding should go through addChild()
     public Map<String, DeviceNode> getChildren() {
-        return Collections.unmodifiableMap(children);
+        return new AbstractMap<String, DeviceNode>() {
+
+            @Override
+            public Set<Map.Entry<String, DeviceNode>> entrySet() {
+                return Collections.unmodifiableMap(children).entrySet();
+            }
+
+            @Override
+            public Set<String> keySet() {
+                return Collections.unmodifiableSet(children.keySet());
+            }
+
+            @Override
+            public Collection<DeviceNode> values() {
+                return Collections.unmodifiableCollection(children.values());
+            }
+
+            @Override
+            public int size() {
+                return children.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return children.isEmpty();
+            }
+
+            @Override
+            public DeviceNode get(Object key) {
+                return children.get(key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return children.containsKey(key);
+            }
+        };
     }
 
     public List<String> getChildrenNamesSorted() {
-        LinkedList<String> leaves = new LinkedList();
-        LinkedList<String> branches = new LinkedList();
-        synchronized (children) {
-            for (DeviceNode d : children.values()) {
-                if (d.getChildren().isEmpty()) {
-                    leaves.add(d.getName());
-                } else {
-                    branches.add(d.getName());
-                }
+        // no lock: children is a ConcurrentMap, and every childless node
+        // shares NO_CHILDREN, so locking it would serialize all serializers
+        ConcurrentMap<String, DeviceNode> c = children;
+        List<String> leaves = new ArrayList<>(c.size());
+        List<String> branches = new ArrayList<>();
+        for (DeviceNode d : c.values()) {
+            if (d.children.isEmpty()) {
+                leaves.add(d.getName());
+            } else {
+                branches.add(d.getName());
             }
         }
         Collections.sort(leaves);
@@ -413,15 +2020,89 @@ public class DeviceNode implements PropertyChangeListener {
         return children.get(name);
     }
 
+    // a null attribute removes it
     public DeviceNode addAttribute(String name, String attribute) {
-        this.attributes.put(name, attribute);
+        AttributeSet current;
+        AttributeSet next;
+        do {
+            current = attributes;
+            next = current.with(name, attribute);
+        } while (next != current && !ATTRIBUTES.compareAndSet(this, current, next));
+        if (next != current) {
+            contentChanged();
+            attributesChanged(current, next);
+        }
         return this;
     }
 
-    public synchronized Map<String, String> getAttributes() {
+    public DeviceNode removeAttribute(String name) {
+        return addAttribute(name, null);
+    }
+
+    // the shared, immutable set this node currently points at
+    public AttributeSet getAttributeSet() {
         return attributes;
     }
 
+    // live view of the attributes; writes through it go to addAttribute() and
+    // so replace this node's set rather than changing the shared one
+    public Map<String, String> getAttributes() {
+        return new AbstractMap<String, String>() {
+
+            @Override
+            public Set<Map.Entry<String, String>> entrySet() {
+                return attributes.entrySet();
+            }
+
+            @Override
+            public int size() {
+                return attributes.size();
+            }
+
+            @Override
+            public String get(Object key) {
+                return attributes.get(key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return attributes.containsKey(key);
+            }
+
+            @Override
+            public String put(String key, String value) {
+                String old = attributes.get(key);
+                addAttribute(key, value);
+                return old;
+            }
+
+            @Override
+            public String remove(Object key) {
+                String old = attributes.get(key);
+                if (key instanceof String) {
+                    removeAttribute((String) key);
+                }
+                return old;
+            }
+
+            @Override
+            public void putAll(Map<? extends String, ? extends String> m) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> incoming = (Map<String, String>) m;
+                mergeAttributes(incoming);
+            }
+
+            @Override
+            public void clear() {
+                AttributeSet current = ATTRIBUTES.getAndSet(DeviceNode.this, AttributeSet.EMPTY);
+                if (current != AttributeSet.EMPTY) {
+                    contentChanged();
+                    attributesChanged(current, AttributeSet.EMPTY);
+                }
+            }
+        };
+    }
+
     public String getAttribute(String name) {
         return attributes.get(name);
     }
@@ -438,12 +2119,31 @@ public class DeviceNode implements PropertyChangeListener {
     }
 
     public String getNodePath() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.parent != null ? this.parent.getNodePath() : "").append("/").append(this.getName());
+        int depth = 0;
+        for (DeviceNode n = this; n != null; n = n.parent) {
+            depth++;
+        }
+        String[] names = new String[depth];
+        for (DeviceNode n = this; n != null; n = n.parent) {
+            names[--depth] = n.getName();
+        }
 
+        StringBuilder sb = new StringBuilder();
+        for (String n : names) {
+            sb.append("/").append(n);
+        }
         return sb.toString();
     }
 
+    // path below the root, e.g. "/child/grandchild"; "" for the root itself
+    String getRelativePath() {
+        if (parent == null) {
+            return "";
+        }
+        String path = getNodePath();
+        return path.substring(path.indexOf('/', 1));
+    }
+
     public NodeHandler getSetHandle() {
         return setHandle;
     }
@@ -458,6 +2158,8 @@ public class DeviceNode implements PropertyChangeListener {
 
     public void setUpdateHandle(NodeHandler updateHandle) {
         this.updateHandle = updateHandle;
+        // update() mustn't skip this subtree any more
+        markHashStale();
     }
 
     public NodeGetHandler getGetHandle() {
@@ -465,12 +2167,65 @@ public class DeviceNode implements PropertyChangeListener {
     }
 
     public void setGetHandle(NodeGetHandler getHandle) {
+        setGetHandle(getHandle, 0);
+    }
+
+    // reuse what the handler returns for ttlMillis, so bursts of reads don't
+    // all go to the device; 0 asks it every time
+    public void setGetHandle(NodeGetHandler getHandle, long ttlMillis) {
         this.getHandle = getHandle;
+        this.getCache = ttlMillis > 0 ? new GetHandlerCache(TimeUnit.MILLISECONDS.toNanos(ttlMillis)) : null;
     }
 
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
         // we don't do anything here yet...
-        // the updateNode() and childEventFired() methods take care of recursion
+        // the updateNode() and fireAncestors() methods take care of recursion
+    }
+
+    // children removed from a node, by name, with the version of removal.
+    // Only the latest MAX_TOMBSTONES are kept, so nodes whose children come
+    // and go under new names don't grow without bound; prunedUpTo is the
+    // newest version dropped, older deltas can't list all removals
+    private static final class Tombstones {
+
+        final ConcurrentHashMap<String, Long> byName = new ConcurrentHashMap<>();
+        volatile long prunedUpTo;
+
+        void add(String childName, long v) {
+            byName.put(childName, v);
+            if (byName.size() > MAX_TOMBSTONES) {
+                prune();
+            }
+        }
+
+        // drop the older half
+        private synchronized void prune() {
+            if (byName.size() <= MAX_TOMBSTONES) {
+                return;
+            }
+            List<Long> versions = new ArrayList<>(byName.values());
+            Collections.sort(versions);
+            long horizon = versions.get(versions.size() - MAX_TOMBSTONES / 2 - 1);
+            if (horizon > prunedUpTo) {
+                prunedUpTo = horizon;
+            }
+            Iterator<Map.Entry<String, Long>> i = byName.entrySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().getValue() <= horizon) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    // a delta can't be made from tombstones that were pruned
+    private static final class ResyncRequired extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        ResyncRequired() {
+            super(null, null, false, false);
+        }
     }
 }
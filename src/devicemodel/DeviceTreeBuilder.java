@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds a new tree in one pass, top down, as a document is read. The
+ * nodes are linked as they are made, without the locking, versioning and
+ * change tracking setValue(), addAttribute() and addChild() do for a live
+ * tree; a tree no one else can see yet doesn't need them. The converters
+ * read every model through one. The finished tree goes into a live one in a
+ * single addChild(), see attachTo().
+ *
+ *   DeviceTreeBuilder b = new DeviceTreeBuilder("Chassis");
+ *   b.begin("Card1").attribute("slot", "1");
+ *   b.begin("Temperature").value(41L).end();
+ *   b.end();
+ *   DeviceNode chassis = b.build();
+ *
+ * A builder is for one thread and one tree; it can't be used once the tree
+ * is built.
+ *
+ * @author root
+ */
+public class DeviceTreeBuilder {
+
+    // every node of the tree gets this version
+    private final long version = DeviceNode.latestVersion();
+    private final DeviceNode root;
+    // the nodes begun and not yet ended, the root first
+    private final ArrayList<DeviceNode> open = new ArrayList<>();
+    private DeviceNode current;
+    private boolean built = false;
+    // the first node made with each name; the ones after it take its
+    // interned name and name hash from there. The same few names make up
+    // most of a model, and interning is a lookup in the JVM's string table
+    private final HashMap<String, DeviceNode> names = new HashMap<>();
+
+    public DeviceTreeBuilder(String rootName) {
+        root = new DeviceNode(rootName);
+        root.initVersion(version);
+        current = root;
+        open.add(root);
+    }
+
+    // start a child of the current node; it is current until end(). A child
+    // of the same name as an earlier one replaces it, as with addChild()
+    public DeviceTreeBuilder begin(String name) {
+        check();
+        DeviceNode n = newNode(name);
+        n.initVersion(version);
+        current.initChild(n, version);
+        current = n;
+        open.add(n);
+        return this;
+    }
+
+    // finish the current node; its parent is current again
+    public DeviceTreeBuilder end() {
+        check();
+        if (open.size() == 1) {
+            throw new IllegalStateException("end() without begin()");
+        }
+        open.remove(open.size() - 1);
+        current = open.get(open.size() - 1);
+        return this;
+    }
+
+    // add a finished subtree, e.g. a copy of a template, as a child of the
+    // current node
+    public DeviceTreeBuilder add(DeviceNode subtree) {
+        check();
+        if (subtree.getParent() != null) {
+            throw new IllegalArgumentException("Child " + subtree.getName() + " already has parent " + subtree.getParent().getName());
+        }
+        current.initChild(subtree, version);
+        return this;
+    }
+
+    public DeviceTreeBuilder value(String value) {
+        check();
+        current.initValue(ValueType.STRING, 0, value);
+        return this;
+    }
+
+    public DeviceTreeBuilder value(long value) {
+        check();
+        current.initValue(ValueType.LONG, value, null);
+        return this;
+    }
+
+    public DeviceTreeBuilder value(double value) {
+        check();
+        current.initValue(ValueType.DOUBLE, Double.doubleToLongBits(value), null);
+        return this;
+    }
+
+    public DeviceTreeBuilder value(boolean value) {
+        check();
+        current.initValue(ValueType.BOOLEAN, value ? 1 : 0, null);
+        return this;
+    }
+
+    // text parsed as the given type, kept as is if it doesn't parse; like
+    // DeviceNode.setValue(String, ValueType)
+    public DeviceTreeBuilder value(String text, ValueType type) {
+        check();
+        if (type != ValueType.STRING && text != null) {
+            try {
+                current.initValue(type, type.parse(text), null);
+                return this;
+            } catch (NumberFormatException ex) {
+                // fall through to plain text
+            }
+        }
+        current.initValue(ValueType.STRING, 0, text);
+        return this;
+    }
+
+    // a null value removes the attribute
+    public DeviceTreeBuilder attribute(String name, String value) {
+        check();
+        current.initAttributes(current.getAttributeSet().with(name, value));
+        return this;
+    }
+
+    // the node begin() was last called for, or the root
+    public DeviceNode current() {
+        return current;
+    }
+
+    // the finished tree; every begin() must have been ended
+    public DeviceNode build() {
+        if (!built) {
+            if (open.size() > 1) {
+                throw new IllegalStateException("node " + current.getName() + " not ended");
+            }
+            built = true;
+        }
+        return root;
+    }
+
+    // build the tree and add it to parent in one operation: one journal
+    // record, one snapshot publication
+    public DeviceNode attachTo(DeviceNode parent) throws Exception {
+        DeviceNode tree = build();
+        parent.addChild(tree);
+        return tree;
+    }
+
+    private DeviceNode newNode(String name) {
+        if (name == null) {
+            return new DeviceNode(null);
+        }
+        DeviceNode seen = names.get(name);
+        if (seen == null) {
+            seen = new DeviceNode(name);
+            names.put(name, seen);
+            return seen;
+        }
+        return new DeviceNode(seen.name, seen.nameHash);
+    }
+
+    private void check() {
+        if (built) {
+            throw new IllegalStateException("the tree is built already");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeListenerProxy;
+import java.beans.PropertyChangeSupport;
+
+/**
+ * Delivers the aggregated change events built by DeviceNode.update() to the
+ * listeners registered on a node's PropertyChangeSupport and to path
+ * subscriptions. The dispatcher is set per tree on the root node; by default
+ * events are fired synchronously on the updating thread.
+ *
+ * @author root
+ */
+public abstract class EventDispatcher {
+
+    // fires straight through PropertyChangeSupport on the calling thread
+    public static final EventDispatcher SYNCHRONOUS = new EventDispatcher() {
+
+        @Override
+        public void fire(DeviceNode source, PropertyChangeSupport support, DeviceNode change) {
+            support.firePropertyChange(DeviceNode.PROPERTY_CHANGE_NAME, null, change);
+        }
+
+        @Override
+        public void dispatch(DeviceNode source, PropertyChangeListener listener, DeviceNode change) {
+            listener.propertyChange(new PropertyChangeEvent(source, DeviceNode.PROPERTY_CHANGE_NAME, null, change));
+        }
+    };
+
+    // deliver one event to one listener; source is the node the event is
+    // about, change the event tree rooted at (a shallow clone of) that node
+    public abstract void dispatch(DeviceNode source, PropertyChangeListener listener, DeviceNode change);
+
+    // deliver an event to every listener of a node's change support
+    public void fire(DeviceNode source, PropertyChangeSupport support, DeviceNode change) {
+        if (!support.hasListeners(DeviceNode.PROPERTY_CHANGE_NAME)) {
+            return;
+        }
+        for (PropertyChangeListener l : support.getPropertyChangeListeners()) {
+            // skip listeners registered for some other property name
+            if (l instanceof PropertyChangeListenerProxy
+                    && !DeviceNode.PROPERTY_CHANGE_NAME.equals(((PropertyChangeListenerProxy) l).getPropertyName())) {
+                continue;
+            }
+            dispatch(source, l, change);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Serialized fragments of nodes, so writing a tree out again mostly copies
+ * the text of the subtrees that didn't change. Set one on a tree with
+ * DeviceNode.setFragmentCache(); JsonConversions and the compact output of
+ * XmlStreamConversions then use it. One cache may serve several trees.
+ *
+ * A fragment is kept with the node, together with the node's subtree hash
+ * at the time it was made (see DeviceNode.getSubtreeHash()). Any change in
+ * the subtree changes that hash, so a change to a node invalidates the
+ * fragments of all its ancestors without anything being walked at write
+ * time. The cache is bounded by an estimate of the memory its entries and
+ * fragments take; past that, fragments not used since the last sweep are
+ * dropped (the clock algorithm). The cache only holds its nodes weakly, so
+ * a subtree removed from its tree can still be collected, and its
+ * fragments stop counting toward the bound once it is.
+ *
+ * @author root
+ */
+public final class FragmentCache {
+
+    public enum Format {
+
+        JSON, XML
+    }
+
+    // rough size of a fragment besides its characters, and of an entry
+    private static final long OVERHEAD = 64;
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final long capacity;
+    // all entries, for the clock sweep; guarded by this
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    // entries whose node was collected, and how many of those are still in
+    // the clock; guarded by this
+    private final ReferenceQueue<DeviceNode> collected = new ReferenceQueue<>();
+    private int dead = 0;
+    private volatile long size = 0;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private volatile long evictions = 0;
+
+    // capacity in bytes, estimated as two per character
+    public FragmentCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    // the fragment made for node while its subtree hash was hash, or null
+    public String get(DeviceNode node, Format format, long hash) {
+        Entry e = node.fragments;
+        if (e != null && e.cache == this) {
+            Fragment f = e.slots[format.ordinal()];
+            if (f != null && f.hash == hash) {
+                e.used = true;
+                hits.increment();
+                return f.text;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // keep a fragment of node, made while its subtree hash was hash
+    public void put(DeviceNode node, Format format, long hash, String text) {
+        Fragment f = new Fragment(hash, text);
+        if (f.cost() > capacity) {
+            return;
+        }
+        synchronized (this) {
+            expunge();
+            Entry e = node.fragments;
+            if (e == null || e.cache != this) {
+                e = new Entry(this, node, collected);
+                node.fragments = e;
+                clock.add(e);
+                size += ENTRY_OVERHEAD;
+            }
+            Fragment old = e.slots[format.ordinal()];
+            e.slots[format.ordinal()] = f;
+            e.used = true;
+            size += f.cost() - (old == null ? 0 : old.cost());
+            if (size > capacity) {
+                evict();
+            }
+        }
+    }
+
+    // drop everything
+    public synchronized void clear() {
+        for (Entry e : clock) {
+            e.drop();
+        }
+        clock.clear();
+        while (collected.poll() != null) {
+            // already gone from the clock
+        }
+        dead = 0;
+        size = 0;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // estimated bytes held
+    public long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // stop counting the entries of collected nodes; they leave the clock at
+    // the next sweep, or here once they make up half of it. Only called while
+    // holding this
+    private void expunge() {
+        Entry.Ref r;
+        while ((r = (Entry.Ref) collected.poll()) != null) {
+            Entry e = r.entry;
+            // an entry dropped already no longer counts, nor is in the clock
+            if (e.counted) {
+                size -= e.cost();
+                e.clearSlots();
+                e.counted = false;
+                dead++;
+            }
+        }
+        if (dead > 0 && dead * 2 > clock.size()) {
+            for (Iterator<Entry> i = clock.iterator(); i.hasNext();) {
+                if (!i.next().counted) {
+                    i.remove();
+                }
+            }
+            dead = 0;
+        }
+    }
+
+    // go round the entries, giving the ones used since the last round another
+    // chance, until enough is dropped; only called while holding this
+    private void evict() {
+        // a round clears every used flag, so two rounds always suffice
+        int budget = clock.size() * 2;
+        while (size > capacity && budget-- > 0) {
+            Entry e = clock.poll();
+            if (!e.counted) {
+                dead--;
+                continue;
+            }
+            if (e.used) {
+                e.used = false;
+                clock.add(e);
+                continue;
+            }
+            size -= e.cost();
+            e.drop();
+            evictions++;
+        }
+    }
+
+    // the fragments of one node, which holds on to them; the entry only
+    // refers back to the node weakly
+    static final class Entry {
+
+        final FragmentCache cache;
+        final Ref node;
+        final Fragment[] slots = new Fragment[Format.values().length];
+        volatile boolean used;
+        // its cost is in the cache's size; false once the node was
+        // collected or the entry dropped. Guarded by the cache
+        boolean counted = true;
+
+        Entry(FragmentCache cache, DeviceNode node, ReferenceQueue<DeviceNode> queue) {
+            this.cache = cache;
+            this.node = new Ref(node, queue, this);
+        }
+
+        // what this entry and its fragments count for
+        long cost() {
+            long c = ENTRY_OVERHEAD;
+            for (Fragment f : slots) {
+                if (f != null) {
+                    c += f.cost();
+                }
+            }
+            return c;
+        }
+
+        void clearSlots() {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = null;
+            }
+        }
+
+        void drop() {
+            DeviceNode n = node.get();
+            if (n != null && n.fragments == this) {
+                n.fragments = null;
+            }
+            node.clear();
+            clearSlots();
+            counted = false;
+        }
+
+        static final class Ref extends WeakReference<DeviceNode> {
+
+            final Entry entry;
+
+            Ref(DeviceNode node, ReferenceQueue<DeviceNode> queue, Entry entry) {
+                super(node, queue);
+                this.entry = entry;
+            }
+        }
+    }
+
+    private static final class Fragment {
+
+        final long hash;
+        final String text;
+
+        Fragment(long hash, String text) {
+            this.hash = hash;
+            this.text = text;
+        }
+
+        long cost() {
+            return OVERHEAD + 2L * text.length();
+        }
+    }
+}
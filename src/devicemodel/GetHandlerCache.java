@@ -0,0 +1,85 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the result of a node's get handler for a while, so a burst of
+ * get() calls queries the device once (see DeviceNode.setGetHandle(handler,
+ * ttl)). Calls that miss while the handler is already running wait for that
+ * run instead of starting another. Every caller gets its own copy of the
+ * result, since get() attaches children to it.
+ *
+ * @author root
+ */
+final class GetHandlerCache {
+
+    private final long ttlNanos;
+    // guarded by this
+    private DeviceNode value;
+    private long expires;
+    private FutureTask<DeviceNode> loading;
+
+    GetHandlerCache(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    synchronized boolean isFresh() {
+        return value != null && System.nanoTime() - expires < 0;
+    }
+
+    DeviceNode get(Callable<DeviceNode> handler) {
+        FutureTask<DeviceNode> task;
+        boolean run = false;
+        synchronized (this) {
+            if (value != null && System.nanoTime() - expires < 0) {
+                return value.cloneDeep();
+            }
+            task = loading;
+            if (task == null) {
+                task = new FutureTask<>(handler);
+                loading = task;
+                run = true;
+            }
+        }
+
+        if (run) {
+            task.run();
+            synchronized (this) {
+                loading = null;
+                try {
+                    DeviceNode r = task.get();
+                    if (r != null) {
+                        value = r;
+                        expires = System.nanoTime() + ttlNanos;
+                    }
+                } catch (ExecutionException | InterruptedException ex) {
+                    // it failed; thrown below
+                }
+            }
+        }
+
+        DeviceNode result;
+        try {
+            result = task.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        return result == null ? null : result.cloneDeep();
+    }
+}
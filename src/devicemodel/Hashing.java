@@ -0,0 +1,49 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+/**
+ * 64-bit hashing for subtree hashes (see DeviceNode.getSubtreeHash()).
+ * String.hashCode() is too narrow to tell whole device trees apart, so
+ * strings go through FNV-1a and combined values through the SplitMix64
+ * finalizer.
+ *
+ * @author root
+ */
+final class Hashing {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+    // what a null string hashes to, so it differs from ""
+    private static final long NULL = 0x5bd1e9955bd1e995L;
+
+    private Hashing() {
+    }
+
+    static long string(String s) {
+        if (s == null) {
+            return NULL;
+        }
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    // order matters: combine(a, b) != combine(b, a)
+    static long combine(long a, long b) {
+        return mix(a * GOLDEN + b);
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values (latencies in nanoseconds, fan-out
+ * counts) in power-of-two buckets. Recording takes no locks: every thread
+ * counts into its own stripe of buckets. Percentiles are accurate to within
+ * a factor of two, which is enough to spot a slow handler.
+ *
+ * @author root
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    // per stripe, bucket b counts values v with 64 - numberOfLeadingZeros(v) == b
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket);
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public Summary summary() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int s = 0; s < StripedCounter.STRIPES; s++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                long c = counts.get(s * BUCKETS + b);
+                merged[b] += c;
+                count += c;
+            }
+        }
+        long m = max.get();
+        return new Summary(count, count == 0 ? 0 : (double) sum.sum() / count, m,
+                percentile(merged, count, 0.5, m), percentile(merged, count, 0.9, m), percentile(merged, count, 0.99, m));
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    // upper end of the bucket holding the p-th value, but never above the max
+    private static long percentile(long[] buckets, long count, double p, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                long upper = b == 0 ? 0 : (b >= 63 ? Long.MAX_VALUE : (1L << b) - 1);
+                return Math.min(upper, max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Point-in-time figures of a histogram.
+     */
+    public static final class Summary {
+
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        Summary(long count, double mean, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + String.format("%.1f", mean) + " p50=" + p50
+                    + " p90=" + p90 + " p99=" + p99 + " max=" + max;
+        }
+    }
+}
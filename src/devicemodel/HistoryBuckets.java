@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.Arrays;
+
+/**
+ * Downsampled history: per fixed-width time bucket the minimum, maximum and
+ * average of the samples in it. Only buckets holding samples are listed.
+ *
+ * @author root
+ */
+public final class HistoryBuckets {
+
+    private long[] starts;
+    private double[] min;
+    private double[] max;
+    private double[] sum;
+    private int[] counts;
+    private int size;
+
+    HistoryBuckets(int expected) {
+        int n = Math.max(expected, 1);
+        starts = new long[n];
+        min = new double[n];
+        max = new double[n];
+        sum = new double[n];
+        counts = new int[n];
+    }
+
+    // open the next bucket
+    void start(long time) {
+        if (size == starts.length) {
+            int n = size * 2;
+            starts = Arrays.copyOf(starts, n);
+            min = Arrays.copyOf(min, n);
+            max = Arrays.copyOf(max, n);
+            sum = Arrays.copyOf(sum, n);
+            counts = Arrays.copyOf(counts, n);
+        }
+        starts[size] = time;
+        min[size] = Double.POSITIVE_INFINITY;
+        max[size] = Double.NEGATIVE_INFINITY;
+        size++;
+    }
+
+    // add a sample to the open bucket
+    void add(double value) {
+        int i = size - 1;
+        min[i] = Math.min(min[i], value);
+        max[i] = Math.max(max[i], value);
+        sum[i] += value;
+        counts[i]++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int i) {
+        check(i);
+        return starts[i];
+    }
+
+    public double getMin(int i) {
+        check(i);
+        return min[i];
+    }
+
+    public double getMax(int i) {
+        check(i);
+        return max[i];
+    }
+
+    public double getAverage(int i) {
+        check(i);
+        return sum[i] / counts[i];
+    }
+
+    public int getCount(int i) {
+        check(i);
+        return counts[i];
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("bucket " + i + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of the last N (time, value) samples of one node, kept off the heap in
+ * a direct buffer: 16 bytes a sample and no objects per sample. Values are
+ * stored as doubles; text values that don't parse as numbers are skipped.
+ * Times never go backwards, so a sample taken after the clock was set back
+ * gets the time of the one before it.
+ *
+ * @author root
+ */
+final class HistoryBuffer {
+
+    private static final int SAMPLE = 16;
+    // the most samples one direct buffer holds
+    static final int MAX_CAPACITY = Integer.MAX_VALUE / SAMPLE;
+
+    private final ByteBuffer samples;
+    private final int capacity;
+    // samples ever recorded; the newest is at (count - 1) % capacity
+    private long count;
+    private long lastTime = Long.MIN_VALUE;
+
+    HistoryBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be at most " + MAX_CAPACITY);
+        }
+        this.capacity = capacity;
+        this.samples = ByteBuffer.allocateDirect(capacity * SAMPLE);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void record(ValueType type, long bits, String text) {
+        double v;
+        if (type == ValueType.STRING) {
+            try {
+                v = Double.parseDouble(text.trim());
+            } catch (NumberFormatException ex) {
+                // nothing to trend
+                return;
+            }
+        } else {
+            v = type.asDouble(bits, text);
+        }
+        record(System.currentTimeMillis(), v);
+    }
+
+    synchronized void record(long time, double value) {
+        if (time < lastTime) {
+            time = lastTime;
+        }
+        lastTime = time;
+        int at = (int) (count % capacity) * SAMPLE;
+        samples.putLong(at, time);
+        samples.putDouble(at + 8, value);
+        count++;
+    }
+
+    // samples with from <= time < to, oldest first; none if to <= from
+    synchronized HistorySeries range(long from, long to) {
+        int first = firstAtOrAfter(from);
+        int end = Math.max(first, firstAtOrAfter(to));
+        int n = end - first;
+        long[] times = new long[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            int at = slot(first + i);
+            times[i] = samples.getLong(at);
+            values[i] = samples.getDouble(at + 8);
+        }
+        return new HistorySeries(times, values);
+    }
+
+    // the same samples folded into buckets of the given width, starting at
+    // from; buckets without samples are left out
+    synchronized HistoryBuckets downsample(long from, long to, long width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("bucket width must be positive");
+        }
+        int first = firstAtOrAfter(from);
+        int end = Math.max(first, firstAtOrAfter(to));
+
+        HistoryBuckets buckets = new HistoryBuckets(Math.min(end - first, (int) Math.max(0, Math.min(Integer.MAX_VALUE, (to - from + width - 1) / width))));
+        long bucket = Long.MIN_VALUE;
+        for (int i = first; i < end; i++) {
+            int at = slot(i);
+            long time = samples.getLong(at);
+            double value = samples.getDouble(at + 8);
+            long b = (time - from) / width;
+            if (b != bucket) {
+                bucket = b;
+                buckets.start(from + b * width);
+            }
+            buckets.add(value);
+        }
+        return buckets;
+    }
+
+    // number of retained samples
+    private int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    // buffer offset of the i-th retained sample, 0 being the oldest
+    private int slot(int i) {
+        long oldest = count - size();
+        return (int) ((oldest + i) % capacity) * SAMPLE;
+    }
+
+    // index of the first retained sample at or after time; times only go
+    // forwards, so the ring is sorted
+    private int firstAtOrAfter(long time) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (samples.getLong(slot(mid)) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+/**
+ * Samples of one node's value over a time range, oldest first, as parallel
+ * arrays of times (milliseconds since the epoch) and values.
+ *
+ * @author root
+ */
+public final class HistorySeries {
+
+    private final long[] times;
+    private final double[] values;
+
+    HistorySeries(long[] times, double[] values) {
+        this.times = times;
+        this.values = values;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    public long[] getTimes() {
+        return times.clone();
+    }
+
+    public double[] getValues() {
+        return values.clone();
+    }
+}
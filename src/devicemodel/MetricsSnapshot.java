@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A tree's metrics at one point in time (see TreeMetrics.snapshot()).
+ * Counts are totals since the metrics were enabled or reset; rates are per
+ * second over the interval since the previous snapshot.
+ *
+ * @author root
+ */
+public final class MetricsSnapshot {
+
+    private final long time;
+    private final double interval;
+    private final long updates;
+    private final long changes;
+    private final double updateRate;
+    private final Map<String, Long> prefixUpdates;
+    private final Map<String, Double> prefixRates;
+    private final Histogram.Summary fanOut;
+    private final Histogram.Summary updateHandler;
+    private final Histogram.Summary setHandler;
+    private final Histogram.Summary getHandler;
+    private final Histogram.Summary dispatch;
+    private final int nodes;
+    private final int subscriptions;
+    private final Map<String, Integer> indexSizes;
+    private final int queueDepth;
+
+    MetricsSnapshot(long time, double interval, long updates, long changes, double updateRate,
+            Map<String, Long> prefixUpdates, Map<String, Double> prefixRates,
+            Histogram.Summary fanOut, Histogram.Summary updateHandler, Histogram.Summary setHandler,
+            Histogram.Summary getHandler, Histogram.Summary dispatch, int nodes, int subscriptions,
+            Map<String, Integer> indexSizes, int queueDepth) {
+        this.time = time;
+        this.interval = interval;
+        this.updates = updates;
+        this.changes = changes;
+        this.updateRate = updateRate;
+        this.prefixUpdates = Collections.unmodifiableMap(prefixUpdates);
+        this.prefixRates = Collections.unmodifiableMap(prefixRates);
+        this.fanOut = fanOut;
+        this.updateHandler = updateHandler;
+        this.setHandler = setHandler;
+        this.getHandler = getHandler;
+        this.dispatch = dispatch;
+        this.nodes = nodes;
+        this.subscriptions = subscriptions;
+        this.indexSizes = Collections.unmodifiableMap(indexSizes);
+        this.queueDepth = queueDepth;
+    }
+
+    // when it was taken, in milliseconds since the epoch
+    public long getTime() {
+        return time;
+    }
+
+    // seconds since the previous snapshot
+    public double getInterval() {
+        return interval;
+    }
+
+    // update(), the typed update()s and apply() calls that reached the tree
+    public long getUpdates() {
+        return updates;
+    }
+
+    // those that changed something and fired events
+    public long getChanges() {
+        return changes;
+    }
+
+    public double getUpdateRate() {
+        return updateRate;
+    }
+
+    // updates by the path prefix of the nodes they changed, busiest first
+    public Map<String, Long> getPrefixUpdates() {
+        return prefixUpdates;
+    }
+
+    public Map<String, Double> getPrefixRates() {
+        return prefixRates;
+    }
+
+    // listener deliveries per update: nodes with listeners that were told,
+    // plus matching subscriptions
+    public Histogram.Summary getFanOut() {
+        return fanOut;
+    }
+
+    // nanoseconds spent in NodeHandler and NodeGetHandler calls
+    public Histogram.Summary getUpdateHandler() {
+        return updateHandler;
+    }
+
+    public Histogram.Summary getSetHandler() {
+        return setHandler;
+    }
+
+    public Histogram.Summary getGetHandler() {
+        return getHandler;
+    }
+
+    // nanoseconds spent handing one node's event to its listeners
+    public Histogram.Summary getDispatch() {
+        return dispatch;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getSubscriptions() {
+        return subscriptions;
+    }
+
+    // nodes filed in each attribute index, by attribute
+    public Map<String, Integer> getIndexSizes() {
+        return indexSizes;
+    }
+
+    // events waiting in an AsyncEventDispatcher, 0 for other dispatchers
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+}
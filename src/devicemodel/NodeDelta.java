@@ -0,0 +1,59 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed in a subtree after some version, from
+ * DeviceNode.changesSince(). To bring a copy up to date, remove the removed
+ * paths first and then update() it with the changes; or, for a resync,
+ * replace the copy with the changes.
+ *
+ * @author root
+ */
+public class NodeDelta {
+
+    private final long version;
+    private final DeviceNode changes;
+    private final List<String> removedPaths;
+    private final boolean resync;
+
+    NodeDelta(long version, DeviceNode changes, List<String> removedPaths, boolean resync) {
+        this.version = version;
+        this.changes = changes;
+        this.removedPaths = Collections.unmodifiableList(removedPaths);
+        this.resync = resync;
+    }
+
+    // pass this to the next changesSince() call
+    public long getVersion() {
+        return version;
+    }
+
+    // changed nodes with their ancestors up to the requested node, or null
+    // if nothing changed; ancestors that only lead to a change have a null value
+    public DeviceNode getChanges() {
+        return changes;
+    }
+
+    // paths of removed nodes, relative to the requested node
+    public List<String> getRemovedPaths() {
+        return removedPaths;
+    }
+
+    // true if the version asked for is older than the removals the tree
+    // still remembers; the changes are then the whole subtree, and the copy
+    // is to be replaced with them rather than updated
+    public boolean isResync() {
+        return resync;
+    }
+
+    public boolean isEmpty() {
+        return changes == null && removedPaths.isEmpty() && !resync;
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package devicemodel;
+
+/**
+ *
+ * @author root
+ */
+public abstract class NodeFilter {
+    // return true if the node is to be in the result of a NodeQuery
+    public abstract boolean accept(DeviceNode node);
+}
@@ -0,0 +1,322 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+/**
+ * The nodes below a node whose path matches a pattern and which pass a
+ * number of conditions; made with DeviceNode.query().
+ *
+ *   List<DeviceNode> alarms = chassis.query("/**")
+ *           .attribute("severity", "critical")
+ *           .valueNot("OK")
+ *           .list();
+ *
+ * The pattern is relative to the node queried and has the syntax of
+ * DeviceNode.subscribe(): a literal name matches itself, "*" any one name,
+ * "**" any number of names (including none), and a segment containing '*'
+ * or '?' is a glob within one name. The empty pattern matches the node
+ * itself.
+ *
+ * Without an index, a query walks the part of the subtree the pattern can
+ * match: literal segments are looked up by name, so "/Card1/Port3/*" only
+ * reads Port3's children. If the tree is indexed on an attribute the query
+ * asks for (see DeviceNode.createIndex()) and the pattern has a wildcard,
+ * the index hands over the nodes with that attribute instead, and only
+ * their paths are checked, so the cost goes with the number of nodes
+ * holding the attribute and not with the size of the tree.
+ *
+ * A query reads the live tree, under the tree's shared lock like get(), so
+ * it never sees part of an UpdateBatch. Results come in no particular order.
+ *
+ * @author root
+ */
+public class NodeQuery {
+
+    private final DeviceNode base;
+    private final String[] segments;
+    // the compiled glob for glob segments, else null
+    private final Pattern[] globs;
+    private final boolean wildcard;
+    // attribute conditions; a null value only asks for the attribute
+    private final List<String> attributeNames = new ArrayList<>();
+    private final List<String> attributeValues = new ArrayList<>();
+    private final List<NodeFilter> filters = new ArrayList<>();
+
+    NodeQuery(DeviceNode base, String pattern) {
+        this.base = base;
+        List<String> split = SubscriptionIndex.split(pattern == null ? "" : pattern);
+        segments = split.toArray(new String[split.size()]);
+        globs = new Pattern[segments.length];
+        boolean any = false;
+        for (int i = 0; i < segments.length; i++) {
+            String s = segments[i];
+            if (s.indexOf('*') >= 0 || s.indexOf('?') >= 0) {
+                any = true;
+                if (!s.equals("*") && !s.equals("**")) {
+                    globs[i] = SubscriptionIndex.compileGlob(s);
+                }
+            }
+        }
+        wildcard = any;
+    }
+
+    // only nodes with this attribute value
+    public NodeQuery attribute(String name, String value) {
+        attributeNames.add(name);
+        attributeValues.add(value);
+        return this;
+    }
+
+    // only nodes with this attribute, whatever its value
+    public NodeQuery hasAttribute(String name) {
+        return attribute(name, null);
+    }
+
+    // only nodes with this value, as getValue() has it
+    public NodeQuery value(final String value) {
+        return where(new NodeFilter() {
+
+            @Override
+            public boolean accept(DeviceNode node) {
+                return value.equals(node.getValue());
+            }
+        });
+    }
+
+    // only nodes with another value than this one
+    public NodeQuery valueNot(final String value) {
+        return where(new NodeFilter() {
+
+            @Override
+            public boolean accept(DeviceNode node) {
+                return !value.equals(node.getValue());
+            }
+        });
+    }
+
+    // only nodes the filter accepts; filters run after the other conditions
+    public NodeQuery where(NodeFilter filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    public List<DeviceNode> list() {
+        return run(Integer.MAX_VALUE);
+    }
+
+    // any one matching node, or null if there is none
+    public DeviceNode first() {
+        List<DeviceNode> found = run(1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    public int count() {
+        return run(Integer.MAX_VALUE).size();
+    }
+
+    private List<DeviceNode> run(int limit) {
+        List<DeviceNode> found = new ArrayList<>();
+        TreeContext ctx = base.getContext();
+        if (ctx == null) {
+            walk(base, start(), found, limit);
+            return found;
+        }
+
+        Lock lock = ctx.lock.readLock();
+        lock.lock();
+        try {
+            Set<DeviceNode> candidates = wildcard ? candidates(ctx) : null;
+            if (candidates == null) {
+                walk(base, start(), found, limit);
+            } else {
+                for (DeviceNode n : candidates) {
+                    if (matchesPath(n) && accepts(n)) {
+                        found.add(n);
+                        if (found.size() >= limit) {
+                            break;
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return found;
+    }
+
+    // the smallest set of nodes an index has for the attribute conditions,
+    // or null if none of them is indexed
+    private Set<DeviceNode> candidates(TreeContext ctx) {
+        Set<DeviceNode> best = null;
+        for (int i = 0; i < attributeNames.size(); i++) {
+            AttributeIndex index = ctx.indexes.get(attributeNames.get(i));
+            if (index != null && index.isReady()) {
+                String value = attributeValues.get(i);
+                Set<DeviceNode> nodes = value == null ? index.all() : index.get(value);
+                if (best == null || nodes.size() < best.size()) {
+                    best = nodes;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void walk(DeviceNode node, boolean[] states, List<DeviceNode> found, int limit) {
+        if (states[segments.length] && accepts(node)) {
+            found.add(node);
+        }
+        if (found.size() >= limit) {
+            return;
+        }
+
+        // if every open segment is a literal, look the children up by name
+        boolean literals = true;
+        for (int i = 0; i < segments.length && literals; i++) {
+            literals = !states[i] || !isWildcard(i);
+        }
+        if (literals) {
+            for (int i = 0; i < segments.length; i++) {
+                if (!states[i] || firstOpen(states, segments[i]) != i) {
+                    // not open, or this name was looked up already
+                    continue;
+                }
+                String name = segments[i];
+                DeviceNode child = node.getChild(name);
+                boolean[] next = child == null ? null : advance(states, name);
+                if (next != null) {
+                    walk(child, next, found, limit);
+                    if (found.size() >= limit) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
+        for (DeviceNode child : node.getChildren().values()) {
+            boolean[] next = advance(states, child.getName());
+            if (next != null) {
+                walk(child, next, found, limit);
+                if (found.size() >= limit) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // whether n is below the node queried, by a path the pattern matches.
+    // Matched from n upwards, so a candidate from an index usually fails on
+    // its own name or its parent's, without a walk to the top
+    private boolean matchesPath(DeviceNode n) {
+        return matchesUp(n, segments.length - 1);
+    }
+
+    // whether the path from the node queried to n matches segments 0 to i
+    private boolean matchesUp(DeviceNode n, int i) {
+        if (n == null) {
+            return false;
+        }
+        if (n == base) {
+            while (i >= 0 && segments[i].equals("**")) {
+                i--;
+            }
+            return i < 0;
+        }
+        if (i < 0) {
+            return false;
+        }
+        if (segments[i].equals("**")) {
+            // match nothing, or n's name and stay on this segment
+            return matchesUp(n, i - 1) || matchesUp(n.getParent(), i);
+        }
+        return matches(i, n.getName()) && matchesUp(n.getParent(), i - 1);
+    }
+
+    private boolean accepts(DeviceNode n) {
+        for (int i = 0; i < attributeNames.size(); i++) {
+            String held = n.getAttribute(attributeNames.get(i));
+            String wanted = attributeValues.get(i);
+            if (held == null || wanted != null && !wanted.equals(held)) {
+                return false;
+            }
+        }
+        for (NodeFilter f : filters) {
+            if (!f.accept(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the pattern positions at the node queried; position i waits for
+    // segment i, and the last one means the whole pattern matched
+    private boolean[] start() {
+        boolean[] states = new boolean[segments.length + 1];
+        mark(states, 0);
+        return states;
+    }
+
+    // the first open position waiting for this literal name
+    private int firstOpen(boolean[] states, String name) {
+        int i = 0;
+        while (!states[i] || !segments[i].equals(name)) {
+            i++;
+        }
+        return i;
+    }
+
+    // the positions after one more name, or null if there are none. The
+    // arrays are never changed once made, so if the positions stay the same,
+    // as they do below "**", the same array is handed back
+    private boolean[] advance(boolean[] states, String name) {
+        boolean[] next = null;
+        for (int i = 0; i < segments.length; i++) {
+            if (!states[i]) {
+                continue;
+            }
+            int to;
+            if (segments[i].equals("**")) {
+                // "**" consumes this name and stays put
+                to = i;
+            } else if (matches(i, name)) {
+                to = i + 1;
+            } else {
+                continue;
+            }
+            if (next == null) {
+                next = new boolean[segments.length + 1];
+            }
+            mark(next, to);
+        }
+        return next != null && Arrays.equals(next, states) ? states : next;
+    }
+
+    // set a position and those reachable through "**" matching nothing
+    private void mark(boolean[] states, int i) {
+        states[i] = true;
+        while (i < segments.length && segments[i].equals("**")) {
+            states[++i] = true;
+        }
+    }
+
+    // whether segment i, which is not "**", matches the name
+    private boolean matches(int i, String name) {
+        if (globs[i] != null) {
+            return globs[i].matcher(name).matches();
+        }
+        return segments[i].equals("*") || segments[i].equals(name);
+    }
+
+    private boolean isWildcard(int i) {
+        return globs[i] != null || segments[i].equals("*") || segments[i].equals("**");
+    }
+}
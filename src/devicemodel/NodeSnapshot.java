@@ -0,0 +1,205 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable version of a node and its subtree, taken with
+ * DeviceNode.snapshot(). Consecutive snapshots share every subtree that did
+ * not change in between, so taking one is cheap and holding on to one costs
+ * only the parts of the tree that have changed since. A snapshot can be read
+ * and serialized from any thread while the live tree keeps changing.
+ *
+ * @author root
+ */
+public final class NodeSnapshot implements NodeView {
+
+    static final NodeSnapshot[] NO_CHILDREN = new NodeSnapshot[0];
+
+    static final Comparator<NodeSnapshot> BY_NAME = new Comparator<NodeSnapshot>() {
+
+        @Override
+        public int compare(NodeSnapshot a, NodeSnapshot b) {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final String name;
+    // text form; built on first use for typed values (a benign race, since
+    // every thread builds the same string)
+    private String value;
+    private final ValueType valueType;
+    private final long bits;
+    private final Map<String, String> attributes;
+    // sorted by name
+    private final NodeSnapshot[] children;
+    private final long version;
+
+    NodeSnapshot(String name, String value, ValueType valueType, long bits, Map<String, String> attributes, NodeSnapshot[] children, long version) {
+        this.name = name;
+        this.value = value;
+        this.valueType = valueType;
+        this.bits = bits;
+        this.attributes = attributes;
+        this.children = children;
+        this.version = version;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getValue() {
+        String v = value;
+        if (v == null && valueType != ValueType.STRING) {
+            v = valueType.format(bits);
+            value = v;
+        }
+        return v;
+    }
+
+    @Override
+    public ValueType getValueType() {
+        return valueType;
+    }
+
+    @Override
+    public long getLongValue() {
+        return valueType.asLong(bits, value);
+    }
+
+    @Override
+    public double getDoubleValue() {
+        return valueType.asDouble(bits, value);
+    }
+
+    @Override
+    public boolean getBooleanValue() {
+        return valueType.asBoolean(bits, value);
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    // the publication this node was last copied in; unchanged subtrees keep
+    // the version of the snapshot they were built for
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public NodeSnapshot getChild(String name) {
+        int lo = 0;
+        int hi = children.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = children[mid].name.compareTo(name);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return children[mid];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, NodeSnapshot> getChildren() {
+        Map<String, NodeSnapshot> map = new LinkedHashMap<>();
+        for (NodeSnapshot c : children) {
+            map.put(c.name, c);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    NodeSnapshot[] children() {
+        return children;
+    }
+
+    public int getChildCount() {
+        return children.length;
+    }
+
+    @Override
+    public List<String> getChildrenNamesSorted() {
+        // children are already sorted by name; keep leaves ahead of branches
+        List<String> leaves = new ArrayList<>(children.length);
+        List<String> branches = new ArrayList<>();
+        for (NodeSnapshot c : children) {
+            if (c.children.length == 0) {
+                leaves.add(c.name);
+            } else {
+                branches.add(c.name);
+            }
+        }
+        leaves.addAll(branches);
+        return leaves;
+    }
+
+    @Override
+    public NodeSnapshot getChildByPath(String path) {
+        if (path == null || !path.startsWith("/")) {
+            return null;
+        }
+
+        NodeSnapshot node = this;
+        int start = 1;
+        while (node != null) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end == start) {
+                return null;
+            }
+            node = node.getChild(path.substring(start, end));
+            if (end == path.length()) {
+                return node;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    // mutable copy of this snapshot, e.g. to pass to update() or set()
+    public DeviceNode toDeviceNode() {
+        DeviceNode n = new DeviceNode(name);
+        n.setValue(valueType, bits, value);
+        n.getAttributes().putAll(attributes);
+        for (NodeSnapshot c : children) {
+            try {
+                n.addChild(c.toDeviceNode());
+            } catch (Exception ex) {
+                // we just made this child; it'll always have a null parent
+            }
+        }
+        return n;
+    }
+
+    static NodeSnapshot[] sorted(List<NodeSnapshot> children) {
+        NodeSnapshot[] array = children.toArray(new NodeSnapshot[children.size()]);
+        Arrays.sort(array, BY_NAME);
+        return array;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of a node, implemented by the live DeviceNode and by the
+ * immutable NodeSnapshot, so conversions can serialize either one.
+ *
+ * @author root
+ */
+public interface NodeView {
+
+    String getName();
+
+    // text form of the value, whatever its type
+    String getValue();
+
+    ValueType getValueType();
+
+    long getLongValue();
+
+    double getDoubleValue();
+
+    boolean getBooleanValue();
+
+    Map<String, String> getAttributes();
+
+    String getAttribute(String name);
+
+    NodeView getChild(String name);
+
+    Map<String, ? extends NodeView> getChildren();
+
+    // leaves first, then branches, each sorted by name
+    List<String> getChildrenNamesSorted();
+
+    NodeView getChildByPath(String path);
+}
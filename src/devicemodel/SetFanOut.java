@@ -0,0 +1,229 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One run of DeviceNode.setParallel(): finds the nodes an incoming tree
+ * sets, the way set() does, and calls their set handlers on the handler
+ * executor. The calling thread hands out the work and collects the results
+ * as they come in, so the handlers of children can start the moment their
+ * parent's is done when parents go first. Each handler is given the timeout
+ * from when it starts running, so handlers queued behind others on a small
+ * executor aren't timed out for waiting.
+ *
+ * @author root
+ */
+final class SetFanOut {
+
+    private final ExecutorService executor;
+    private final long timeout;
+    private final boolean parentsFirst;
+    private final SetResult result = new SetResult();
+    // jobs that started or finished, posted by their threads
+    private final BlockingQueue<Job> events = new LinkedBlockingQueue<>();
+
+    // executor may be null to call the handlers on this thread, one after
+    // another and without timeouts
+    SetFanOut(ExecutorService executor, long timeout, boolean parentsFirst) {
+        this.executor = executor;
+        this.timeout = timeout;
+        this.parentsFirst = parentsFirst;
+    }
+
+    SetResult run(DeviceNode node, DeviceNode incoming) {
+        List<Job> roots = new ArrayList<>();
+        List<Job> all = new ArrayList<>();
+        collect(node, incoming, null, roots, all);
+
+        if (executor == null) {
+            for (Job job : roots) {
+                runInline(job);
+            }
+            return result;
+        }
+
+        // with one thread every handler may run out of time in turn; a job
+        // that hasn't started by then is given up on
+        long limit = System.nanoTime() + timeout * all.size();
+        Set<Job> running = new HashSet<>();
+        for (Job job : parentsFirst ? roots : all) {
+            start(job, running);
+        }
+
+        try {
+            while (!running.isEmpty()) {
+                long now = System.nanoTime();
+                long next = Long.MAX_VALUE;
+                Iterator<Job> i = running.iterator();
+                while (i.hasNext()) {
+                    Job job = i.next();
+                    // a job's time runs from when it starts, not while it waits
+                    // for a thread
+                    long deadline = job.started ? job.startedAt + timeout : limit;
+                    if (now - deadline >= 0) {
+                        i.remove();
+                        job.future.cancel(true);
+                        if (job.started) {
+                            Logger.getLogger(SetFanOut.class.getName()).log(Level.WARNING, "set handler of {0} timed out", job.path);
+                            result.record(job.path, SetResult.Outcome.TIMED_OUT, null);
+                        } else {
+                            Logger.getLogger(SetFanOut.class.getName()).log(Level.WARNING, "set handler of {0} never started", job.path);
+                            result.record(job.path, SetResult.Outcome.NOT_STARTED, null);
+                        }
+                        if (parentsFirst) {
+                            skip(job.dependents);
+                        }
+                    } else {
+                        next = Math.min(next, deadline - now);
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Job job = events.poll(next, TimeUnit.NANOSECONDS);
+                // starts only move a deadline; cancelled jobs are recorded already
+                if (job == null || !job.finished || !running.remove(job)) {
+                    continue;
+                }
+                if (job.error == null) {
+                    result.record(job.path, SetResult.Outcome.DONE, null);
+                    if (parentsFirst) {
+                        for (Job dependent : job.dependents) {
+                            start(dependent, running);
+                        }
+                    }
+                } else {
+                    result.record(job.path, SetResult.Outcome.FAILED, job.error);
+                    if (parentsFirst) {
+                        skip(job.dependents);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            for (Job job : running) {
+                job.future.cancel(true);
+                result.record(job.path, job.started ? SetResult.Outcome.TIMED_OUT : SetResult.Outcome.NOT_STARTED, null);
+            }
+        }
+        return result;
+    }
+
+    // a job per node with a set handler; dependents are the jobs of the
+    // nearest descendants that have one
+    private void collect(DeviceNode node, DeviceNode incoming, Job parent, List<Job> roots, List<Job> all) {
+        if (!incoming.getName().equalsIgnoreCase(node.getName())) {
+            return;
+        }
+        if (node.getSetHandle() != null) {
+            Job job = new Job(node, incoming);
+            (parent == null ? roots : parent.dependents).add(job);
+            all.add(job);
+            parent = job;
+        }
+        for (DeviceNode c : incoming.getChildren().values()) {
+            DeviceNode child = node.getChild(c.getName());
+            if (child != null) {
+                collect(child, c, parent, roots, all);
+            }
+        }
+    }
+
+    private void start(final Job job, Set<Job> running) {
+        try {
+            job.future = executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    job.startedAt = System.nanoTime();
+                    job.started = true;
+                    events.add(job);
+                    try {
+                        job.call();
+                    } catch (RuntimeException | Error ex) {
+                        job.error = ex;
+                    }
+                    job.finished = true;
+                    events.add(job);
+                }
+            });
+            running.add(job);
+        } catch (RejectedExecutionException ex) {
+            result.record(job.path, SetResult.Outcome.FAILED, ex);
+            if (parentsFirst) {
+                skip(job.dependents);
+            }
+        }
+    }
+
+    private void runInline(Job job) {
+        try {
+            job.call();
+            result.record(job.path, SetResult.Outcome.DONE, null);
+        } catch (RuntimeException | Error ex) {
+            result.record(job.path, SetResult.Outcome.FAILED, ex);
+            if (parentsFirst) {
+                skip(job.dependents);
+                return;
+            }
+        }
+        for (Job dependent : job.dependents) {
+            runInline(dependent);
+        }
+    }
+
+    private void skip(List<Job> jobs) {
+        for (Job job : jobs) {
+            result.record(job.path, SetResult.Outcome.SKIPPED, null);
+            skip(job.dependents);
+        }
+    }
+
+    private static final class Job {
+
+        final DeviceNode node;
+        final DeviceNode incoming;
+        final String path;
+        final List<Job> dependents = new ArrayList<>();
+        Future<?> future;
+        // set by the handler's thread
+        volatile boolean started;
+        volatile long startedAt;
+        volatile boolean finished;
+        volatile Throwable error;
+
+        Job(DeviceNode node, DeviceNode incoming) {
+            this.node = node;
+            this.incoming = incoming;
+            this.path = node.getNodePath();
+        }
+
+        // call the set handler, timing it if metrics are on
+        void call() {
+            TreeMetrics metrics = node.getMetrics();
+            long start = metrics == null ? 0 : System.nanoTime();
+            node.getSetHandle().handle(incoming);
+            if (metrics != null) {
+                metrics.setHandler.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What became of each set handler called by DeviceNode.setParallel(), by
+ * the path of its node.
+ *
+ * @author root
+ */
+public class SetResult {
+
+    public enum Outcome {
+
+        // the handler returned
+        DONE,
+        // it threw; see getError()
+        FAILED,
+        // it didn't return within the handler timeout and was cancelled
+        TIMED_OUT,
+        // it never got a thread on the handler executor and was cancelled
+        NOT_STARTED,
+        // not called, because the handler of an ancestor didn't succeed
+        SKIPPED
+    }
+
+    private final Map<String, Outcome> outcomes = new LinkedHashMap<>();
+    private final Map<String, Throwable> errors = new LinkedHashMap<>();
+
+    synchronized void record(String path, Outcome outcome, Throwable error) {
+        outcomes.put(path, outcome);
+        if (error != null) {
+            errors.put(path, error);
+        }
+    }
+
+    // true if every handler returned
+    public synchronized boolean isSuccess() {
+        for (Outcome o : outcomes.values()) {
+            if (o != Outcome.DONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized Map<String, Outcome> getOutcomes() {
+        return new LinkedHashMap<>(outcomes);
+    }
+
+    // null if the node had no handler called
+    public synchronized Outcome getOutcome(String path) {
+        return outcomes.get(path);
+    }
+
+    // what the handler of the node at path threw, if it failed
+    public synchronized Throwable getError(String path) {
+        return errors.get(path);
+    }
+
+    public synchronized List<String> getPaths(Outcome outcome) {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, Outcome> e : outcomes.entrySet()) {
+            if (e.getValue() == outcome) {
+                paths.add(e.getKey());
+            }
+        }
+        return paths;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return outcomes.toString();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that threads add to without contending: each thread adds to one
+ * of several cells, a cache line apart, and reads sum them.
+ *
+ * @author root
+ */
+final class StripedCounter {
+
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+    // longs per cache line
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    // cell of the calling thread
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    void add(long n) {
+        cells.getAndAdd(stripe() * PAD, n);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long s = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            s += cells.get(i * PAD);
+        }
+        return s;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PAD, 0);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write lock for many concurrent readers. Each thread takes the read
+ * lock of its own stripe, so readers on different threads don't fight over
+ * one lock word; the write lock takes every stripe, in order. Meant for
+ * locks whose read side is hot and whose write side is rare, like the
+ * tree lock in TreeContext.
+ *
+ * @author root
+ */
+final class StripedReadWriteLock implements ReadWriteLock {
+
+    // a power of two, at least four per processor
+    private static final int STRIPES = Integer.highestOneBit(Math.max(32, Runtime.getRuntime().availableProcessors() * 4) - 1) * 2;
+
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    // allocated between the stripes so neighbouring locks don't share a
+    // cache line
+    private final long[][] padding = new long[STRIPES][];
+
+    private final Lock readLock = new Lock() {
+
+        @Override
+        public void lock() {
+            stripe().readLock().lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            stripe().readLock().lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return stripe().readLock().tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return stripe().readLock().tryLock(time, unit);
+        }
+
+        @Override
+        public void unlock() {
+            stripe().readLock().unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final Lock writeLock = new Lock() {
+
+        @Override
+        public void lock() {
+            for (ReentrantReadWriteLock s : stripes) {
+                s.writeLock().lock();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            int locked = 0;
+            try {
+                for (ReentrantReadWriteLock s : stripes) {
+                    s.writeLock().lockInterruptibly();
+                    locked++;
+                }
+            } finally {
+                if (locked < stripes.length) {
+                    release(locked);
+                }
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            for (int i = 0; i < stripes.length; i++) {
+                if (!stripes[i].writeLock().tryLock()) {
+                    release(i);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            int locked = 0;
+            try {
+                for (ReentrantReadWriteLock s : stripes) {
+                    if (!s.writeLock().tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        return false;
+                    }
+                    locked++;
+                }
+                return true;
+            } finally {
+                if (locked < stripes.length) {
+                    release(locked);
+                }
+            }
+        }
+
+        @Override
+        public void unlock() {
+            release(stripes.length);
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    StripedReadWriteLock() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+            padding[i] = new long[16];
+        }
+    }
+
+    // the stripe of the calling thread; a thread always gets the same one,
+    // so lock() and unlock() meet
+    private ReentrantReadWriteLock stripe() {
+        long id = Thread.currentThread().getId();
+        return stripes[(int) (id ^ (id >>> 16)) & (STRIPES - 1)];
+    }
+
+    // unlock the first n stripes' write locks, last first
+    private void release(int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+}
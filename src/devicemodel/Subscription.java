@@ -0,0 +1,287 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle for a listener subscribed to a path pattern with
+ * DeviceNode.subscribe(). The listener gets the change event of every node
+ * whose path matches the pattern.
+ *
+ * Events can be thinned out per matched node:
+ * - a deadband drops changes of a numeric value smaller than a given amount
+ *   (or percentage) away from the last value delivered;
+ * - a minimum interval and a maximum rate hold back changes that come too
+ *   soon; the latest state of the node is delivered once the time is up, so
+ *   the listener always ends up with the current value.
+ * Filters are checked before an event is built, so with update(long) and
+ * the like a change no one gets costs no allocation. They look at the value
+ * of the node the pattern matched, so to filter sensor jitter, subscribe
+ * to the sensor leaves themselves. A held back event is delivered on a
+ * timer thread, as a shallow copy of the node.
+ *
+ * @author root
+ */
+public class Subscription {
+
+    private final String pattern;
+    private final PropertyChangeListener listener;
+    private final SubscriptionIndex index;
+    private volatile boolean cancelled = false;
+    // where the pattern ends in the index
+    SubscriptionIndex.Step step;
+    // filters; 0 means off
+    private volatile double deadband = 0;
+    private volatile boolean deadbandPercent = false;
+    private volatile long minIntervalNanos = 0;
+    private volatile double maxRate = 0;
+    // filter state by node, made when the node is first matched with filters
+    // on and kept until the node is removed or this is cancelled
+    private final ConcurrentHashMap<DeviceNode, Gate> gates = new ConcurrentHashMap<>();
+
+    Subscription(String pattern, PropertyChangeListener listener, SubscriptionIndex index) {
+        this.pattern = pattern;
+        this.listener = listener;
+        this.index = index;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public PropertyChangeListener getListener() {
+        return listener;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // stop delivering events to the listener
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            index.remove(this);
+            gates.clear();
+        }
+    }
+
+    // drop changes of less than amount from the last value delivered
+    public Subscription setDeadband(double amount) {
+        deadband = amount;
+        deadbandPercent = false;
+        index.invalidate();
+        return this;
+    }
+
+    // drop changes of less than percent of the last value delivered
+    public Subscription setDeadbandPercent(double percent) {
+        deadband = percent;
+        deadbandPercent = true;
+        index.invalidate();
+        return this;
+    }
+
+    public double getDeadband() {
+        return deadband;
+    }
+
+    public boolean isDeadbandPercent() {
+        return deadbandPercent;
+    }
+
+    // at most one event per node every millis milliseconds
+    public Subscription setMinInterval(long millis) {
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        index.invalidate();
+        return this;
+    }
+
+    public long getMinInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(minIntervalNanos);
+    }
+
+    // at most this many events per node and second on average, in bursts
+    // of up to one second's worth
+    public Subscription setMaxRate(double eventsPerSecond) {
+        maxRate = eventsPerSecond;
+        index.invalidate();
+        return this;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    boolean isFiltered() {
+        return deadband > 0 || minIntervalNanos > 0 || maxRate > 0;
+    }
+
+    // the filter state for a node; the same one each time the node's
+    // matches are worked out again
+    Gate gate(DeviceNode node) {
+        Gate g = gates.get(node);
+        if (g == null) {
+            Gate made = new Gate(node);
+            g = gates.putIfAbsent(node, made);
+            if (g == null) {
+                g = made;
+                index.gated.add(this);
+                if (cancelled) {
+                    // lost the race with cancel()
+                    gates.clear();
+                    index.gated.remove(this);
+                }
+            }
+        }
+        return g;
+    }
+
+    // drop the filter state of a node taken out of the tree
+    void forgetGate(DeviceNode removed) {
+        gates.remove(removed);
+    }
+
+    // filter state of this subscription for one node; kept by the
+    // subscription, and handed to the node's cached matches (see
+    // SubscriptionIndex.matches())
+    final class Gate implements Runnable {
+
+        private final DeviceNode node;
+        // last value delivered, NaN if none or not a number
+        private double last = Double.NaN;
+        private long lastDelivery;
+        private boolean delivered = false;
+        // token bucket for maxRate
+        private double tokens;
+        private long refilled;
+        // a held back event is scheduled
+        private boolean pending = false;
+
+        Gate(DeviceNode node) {
+            this.node = node;
+            this.tokens = Math.max(1, maxRate);
+        }
+
+        // whether a change of the node, which has just happened, is to be
+        // delivered now; if it is held back, it is delivered later
+        synchronized boolean offer(long now) {
+            double v = numericValue();
+            if (withinDeadband(v)) {
+                return false;
+            }
+            long wait = waitFor(now);
+            if (wait <= 0) {
+                delivered(v, now);
+                return true;
+            }
+            if (!pending) {
+                pending = true;
+                Timer.EXECUTOR.schedule(this, wait, TimeUnit.NANOSECONDS);
+            }
+            return false;
+        }
+
+        // deliver what was held back, i.e. the node as it is now
+        @Override
+        public void run() {
+            synchronized (this) {
+                pending = false;
+                if (cancelled) {
+                    return;
+                }
+                long now = System.nanoTime();
+                double v = numericValue();
+                if (withinDeadband(v)) {
+                    return;
+                }
+                long wait = waitFor(now);
+                if (wait > 0) {
+                    pending = true;
+                    Timer.EXECUTOR.schedule(this, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                delivered(v, now);
+            }
+
+            // only if the node is still in the tree
+            DeviceNode root = node.getRoot();
+            TreeContext ctx = root.getContext();
+            if (ctx != null && ctx.subscriptions == index) {
+                ctx.dispatcher.dispatch(node, listener, node.cloneShallow());
+            }
+        }
+
+        private double numericValue() {
+            ValueType t = node.getValueType();
+            return t == ValueType.LONG || t == ValueType.DOUBLE ? node.getDoubleValue() : Double.NaN;
+        }
+
+        private boolean withinDeadband(double v) {
+            double band = deadband;
+            if (band <= 0 || Double.isNaN(v) || Double.isNaN(last)) {
+                return false;
+            }
+            if (deadbandPercent) {
+                band = Math.abs(last) * band / 100;
+            }
+            return Math.abs(v - last) < band;
+        }
+
+        // nanoseconds until an event may go out
+        private long waitFor(long now) {
+            long wait = 0;
+            long interval = minIntervalNanos;
+            if (interval > 0 && delivered) {
+                wait = lastDelivery + interval - now;
+            }
+            double rate = maxRate;
+            if (rate > 0) {
+                refill(now, rate);
+                if (tokens < 1) {
+                    wait = Math.max(wait, (long) ((1 - tokens) * 1e9 / rate) + 1);
+                }
+            }
+            return wait;
+        }
+
+        private void refill(long now, double rate) {
+            if (refilled != 0) {
+                tokens = Math.min(Math.max(1, rate), tokens + (now - refilled) * rate / 1e9);
+            }
+            refilled = now;
+        }
+
+        private void delivered(double v, long now) {
+            last = v;
+            lastDelivery = now;
+            delivered = true;
+            if (maxRate > 0) {
+                tokens -= 1;
+            }
+        }
+    }
+
+    // runs held back deliveries; created on first use
+    private static final class Timer {
+
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-event-filters");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
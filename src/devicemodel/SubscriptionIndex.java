@@ -0,0 +1,340 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.beans.PropertyChangeListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * All path subscriptions of a tree compiled into one trie of pattern
+ * segments. A change event tree is routed by walking it once alongside the
+ * trie, carrying the set of pattern positions that are still live, so the
+ * cost of matching depends on the patterns that can still match a path and
+ * not on how many listeners are subscribed. The subscriptions matching a
+ * node are cached with the node (see matches()), so routing repeated
+ * changes of the same nodes only walks the trie once.
+ *
+ * Pattern segments are separated by '/': a literal name matches itself, "*"
+ * matches any one name, "**" matches any number of names (including none),
+ * and a segment containing '*' or '?' is a glob within one name.
+ *
+ * @author root
+ */
+final class SubscriptionIndex {
+
+    private final Step root = new Step(false);
+
+    // number of live subscriptions; routing is skipped while there are none
+    private volatile int size = 0;
+    // bumped whenever cached matches may be wrong: subscriptions or their
+    // filters changed
+    private volatile int generation = 0;
+    // subscriptions holding filter state for some node
+    final Set<Subscription> gated = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+
+    Subscription add(String pattern, PropertyChangeListener listener) {
+        Subscription sub = new Subscription(pattern, listener, this);
+        synchronized (this) {
+            Step step = root;
+            for (String segment : split(pattern)) {
+                step = step.next(segment);
+            }
+            step.subscribers.add(sub);
+            sub.step = step;
+            size++;
+            generation++;
+        }
+        return sub;
+    }
+
+    synchronized void remove(Subscription sub) {
+        if (sub.step != null && sub.step.subscribers.remove(sub)) {
+            size--;
+            generation++;
+        }
+        gated.remove(sub);
+    }
+
+    // drop all cached matches; they are worked out again when next needed
+    synchronized void invalidate() {
+        generation++;
+    }
+
+    // a node was taken out of the tree: the matches cached in its subtree no
+    // longer hold, and its filter state goes. The rest of the tree keeps its
+    // cache. A node only has matches cached if its parent has, so the walk
+    // stops where they end
+    void removed(DeviceNode node) {
+        boolean gates = !gated.isEmpty();
+        ArrayDeque<DeviceNode> pending = new ArrayDeque<>();
+        pending.add(node);
+        DeviceNode n;
+        while ((n = pending.poll()) != null) {
+            if (n.matches == null) {
+                continue;
+            }
+            n.matches = null;
+            if (gates) {
+                for (Subscription sub : gated) {
+                    sub.forgetGate(n);
+                }
+            }
+            pending.addAll(n.getChildren().values());
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // deliver a change event tree; node is the tree node the change is
+    // about (the root, at first) and change its event node. Subscription
+    // filters are applied here. Returns the number of deliveries
+    int route(DeviceNode node, DeviceNode change, EventDispatcher dispatcher) {
+        Matches m = matches(node);
+        int deliveries = 0;
+        long now = m.filtered ? System.nanoTime() : 0;
+        for (int i = 0; i < m.subscriptions.length; i++) {
+            if (m.gates[i] == null || m.gates[i].offer(now)) {
+                dispatcher.dispatch(node, m.subscriptions[i].getListener(), change);
+                deliveries++;
+            }
+        }
+        if (m.states.isEmpty()) {
+            // no pattern can match further down
+            return deliveries;
+        }
+
+        for (DeviceNode c : change.getChildren().values()) {
+            DeviceNode child = node.getChild(c.getName());
+            if (child == null) {
+                // removed since the event was built
+                continue;
+            }
+            deliveries += route(child, c, dispatcher);
+        }
+        return deliveries;
+    }
+
+    // the deliveries a change of node's value makes, filters applied: the
+    // subscriptions matching the node or one of its ancestors, nearest
+    // first, each with how many levels up it matched. Null if there are
+    // none, so a change no subscription takes allocates nothing
+    List<Selected> select(DeviceNode node) {
+        List<Selected> selected = null;
+        long now = 0;
+        int level = 0;
+        for (DeviceNode n = node; n != null; n = n.getParent(), level++) {
+            Matches m = matches(n);
+            if (m.filtered && now == 0) {
+                now = System.nanoTime();
+            }
+            for (int i = 0; i < m.subscriptions.length; i++) {
+                if (m.gates[i] == null || m.gates[i].offer(now)) {
+                    if (selected == null) {
+                        selected = new ArrayList<>(2);
+                    }
+                    selected.add(new Selected(level, m.subscriptions[i]));
+                }
+            }
+        }
+        return selected;
+    }
+
+    // the subscriptions matching node, cached with the node until the
+    // generation moves on
+    Matches matches(DeviceNode node) {
+        int gen = generation;
+        Matches m = node.matches;
+        if (m != null && m.index == this && m.generation == gen) {
+            return m;
+        }
+        List<Step> states;
+        DeviceNode parent = node.getParent();
+        if (parent == null) {
+            states = new ArrayList<>();
+            closure(root, states);
+        } else {
+            states = advance(matches(parent).states, node.getName());
+        }
+        m = new Matches(this, gen, node, states);
+        node.matches = m;
+        return m;
+    }
+
+    private static List<Step> advance(List<Step> states, String name) {
+        List<Step> next = new ArrayList<>(2);
+        for (Step s : states) {
+            if (s.any) {
+                // "**" consumes this name and stays put
+                closure(s, next);
+            }
+            Step literal = s.literals.get(name);
+            if (literal != null) {
+                closure(literal, next);
+            }
+            if (s.star != null) {
+                closure(s.star, next);
+            }
+            for (Step glob : s.globs) {
+                if (glob.glob.matcher(name).matches()) {
+                    closure(glob, next);
+                }
+            }
+        }
+        return next;
+    }
+
+    // add a step and everything reachable from it without consuming a name,
+    // i.e. through "**" matching nothing
+    private static void closure(Step s, List<Step> states) {
+        while (s != null) {
+            for (Step existing : states) {
+                if (existing == s) {
+                    return;
+                }
+            }
+            states.add(s);
+            s = s.anyStep;
+        }
+    }
+
+    static List<String> split(String pattern) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : pattern.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    static Pattern compileGlob(String segment) {
+        StringBuilder regex = new StringBuilder();
+        for (char ch : segment.toCharArray()) {
+            if (ch == '*') {
+                regex.append(".*");
+            } else if (ch == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(ch)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    // the pattern positions a node's path leads to, and the subscriptions
+    // ending there with their filter state for the node, which the
+    // subscriptions keep, so it outlives the cache
+    static final class Matches {
+
+        final SubscriptionIndex index;
+        final int generation;
+        final List<Step> states;
+        final Subscription[] subscriptions;
+        // null for subscriptions without filters
+        final Subscription.Gate[] gates;
+        final boolean filtered;
+
+        Matches(SubscriptionIndex index, int generation, DeviceNode node, List<Step> states) {
+            this.index = index;
+            this.generation = generation;
+            this.states = states;
+            List<Subscription> subs = new ArrayList<>();
+            for (Step s : states) {
+                subs.addAll(s.subscribers);
+            }
+            subscriptions = subs.toArray(new Subscription[subs.size()]);
+            gates = new Subscription.Gate[subscriptions.length];
+            boolean any = false;
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i].isFiltered()) {
+                    gates[i] = subscriptions[i].gate(node);
+                    any = true;
+                }
+            }
+            filtered = any;
+        }
+    }
+
+    // a subscription taking a change, level ancestors up from the node
+    static final class Selected {
+
+        final int level;
+        final Subscription subscription;
+
+        Selected(int level, Subscription subscription) {
+            this.level = level;
+            this.subscription = subscription;
+        }
+    }
+
+    // one position in the compiled patterns
+    static final class Step {
+
+        // true for a "**" step
+        final boolean any;
+        final Pattern glob;
+        final ConcurrentHashMap<String, Step> literals = new ConcurrentHashMap<>();
+        final List<Step> globs = new CopyOnWriteArrayList<>();
+        final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+        volatile Step star;
+        volatile Step anyStep;
+
+        Step(boolean any) {
+            this(any, null);
+        }
+
+        Step(boolean any, Pattern glob) {
+            this.any = any;
+            this.glob = glob;
+        }
+
+        // only called while holding the index lock
+        Step next(String segment) {
+            if (segment.equals("**")) {
+                if (anyStep == null) {
+                    anyStep = new Step(true);
+                }
+                return anyStep;
+            }
+            if (segment.equals("*")) {
+                if (star == null) {
+                    star = new Step(false);
+                }
+                return star;
+            }
+            if (segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0) {
+                Pattern compiled = compileGlob(segment);
+                for (Step g : globs) {
+                    if (g.glob.pattern().equals(compiled.pattern())) {
+                        return g;
+                    }
+                }
+                Step g = new Step(false, compiled);
+                globs.add(g);
+                return g;
+            }
+            Step literal = literals.get(segment);
+            if (literal == null) {
+                literal = new Step(false);
+                literals.put(segment, literal);
+            }
+            return literal;
+        }
+    }
+}
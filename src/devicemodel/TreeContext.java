@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Settings and shared state that belong to a whole tree rather than to one
+ * node. Only the root of a tree holds a context; nodes reach it through
+ * DeviceNode.getRoot().
+ *
+ * Concurrency model. Any number of threads may read and write a tree at
+ * once; a device thread updating its own subtree should never wait on one
+ * updating another.
+ *
+ * - Writers (update(), addChild(), removeChild()) share the tree lock below;
+ *   it is striped per thread, so sharing it doesn't contend. Only apply()
+ *   takes it exclusively, which is what keeps batches all-or-nothing.
+ * - A node's value is written under its own sequence lock and read without
+ *   one: readers retry the few nanoseconds a writer is mid-way, and always
+ *   see a whole value. Two writers of the same node are serialized there;
+ *   writers of different nodes never meet.
+ * - Attributes are immutable sets swapped in with a compare-and-set;
+ *   children live in concurrent maps. No node monitor is taken on these
+ *   paths.
+ * - Modification versions (DeviceNode.changesSince()) only read the global
+ *   clock, so stamping a change and carrying its version up to the root
+ *   is a read, not a write, for ancestors that already have that version.
+ * - Readers never block: get() shares the lock like writers, snapshot()
+ *   returns the latest published copy without waiting, and value getters
+ *   take no lock at all.
+ * - Snapshot publication is the one serial step. A writer publishes if no
+ *   one else is, otherwise leaves it to the next writer or reader, so
+ *   snapshot() can briefly trail the latest write; currentSnapshot() waits
+ *   for it.
+ * - Events are delivered after the writer has let go of the lock, in the
+ *   writing thread or by the tree's EventDispatcher.
+ * - Update handlers don't run under the lock: they are asked before
+ *   update() and apply() take it, so a handler may write the tree itself,
+ *   even through apply(), and a slow one holds up no batch or checkpoint.
+ *   get() likewise calls its get handlers after letting go of the lock.
+ *
+ * @author root
+ */
+final class TreeContext {
+
+    static final long DEFAULT_HANDLER_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    // how change events are delivered to listeners
+    volatile EventDispatcher dispatcher = EventDispatcher.SYNCHRONOUS;
+    // told about every applied change, if set
+    volatile TreeJournal journal;
+    // counters and histograms, if turned on
+    volatile TreeMetrics metrics;
+    // serialized fragments for the conversions, if set
+    volatile FragmentCache fragments;
+    // runs get and set handlers concurrently, if set; see
+    // DeviceNode.setHandlerExecutor()
+    volatile ExecutorService handlerExecutor;
+    volatile long handlerTimeout = DEFAULT_HANDLER_TIMEOUT;
+    // path pattern subscriptions, relative to the root
+    final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    // secondary indexes by attribute name; see DeviceNode.createIndex()
+    final ConcurrentHashMap<String, AttributeIndex> indexes = new ConcurrentHashMap<>();
+    // held exclusively while an UpdateBatch is applied and shared by get()
+    // and by the other writers, so neither a read nor a published snapshot
+    // ever sees half of a batch
+    final ReadWriteLock lock = new StripedReadWriteLock();
+
+    // latest published snapshot of the root; null until the first call to
+    // DeviceNode.snapshot(), after which every write publishes a new one
+    private volatile NodeSnapshot snapshot;
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private long version = 0;
+
+    // called by writers holding the lock above, after they are done. If
+    // another thread is publishing, this write is left for the next one: the
+    // dirty flags keep it, and readers catch up in latestSnapshot()
+    void publish(DeviceNode root) {
+        if (snapshot == null || !publishLock.tryLock()) {
+            return;
+        }
+        try {
+            rebuild(root);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    NodeSnapshot latestSnapshot(DeviceNode root) {
+        NodeSnapshot s = snapshot;
+        if (s != null) {
+            // catch up with changes made without publishing (setValue() and
+            // the like), but never wait on writers for it
+            if (root.isDirty() && lock.readLock().tryLock()) {
+                try {
+                    if (publishLock.tryLock()) {
+                        try {
+                            s = rebuild(root);
+                        } finally {
+                            publishLock.unlock();
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            return s;
+        }
+
+        // first snapshot of this tree: copy all of it
+        lock.readLock().lock();
+        try {
+            publishLock.lock();
+            try {
+                return rebuild(root);
+            } finally {
+                publishLock.unlock();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // unlike latestSnapshot(), waits for a publication in progress, so the
+    // result includes every write that had finished by the time of the call
+    NodeSnapshot currentSnapshot(DeviceNode root) {
+        lock.readLock().lock();
+        try {
+            publishLock.lock();
+            try {
+                return rebuild(root);
+            } finally {
+                publishLock.unlock();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private NodeSnapshot rebuild(DeviceNode root) {
+        NodeSnapshot s = root.buildSnapshot(++version);
+        snapshot = s;
+        return s;
+    }
+}
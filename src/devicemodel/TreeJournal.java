@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+/**
+ * Told about every change applied to a tree through update(), apply(),
+ * addChild() and removeChild(), e.g. to log it for replay after a restart
+ * (see devicemodel.persistence). Set on the root with setJournal().
+ *
+ * Calls are made by the writing thread while it still holds the tree's lock,
+ * right after the change is in place, so a journal sees one thread's changes
+ * in the order they were applied; two threads writing the same node at once
+ * may be reported in either order. Paths are relative to the root, ""
+ * being the root itself. Updates that changed nothing are not reported;
+ * setValue() and addAttribute() never are.
+ *
+ * @author root
+ */
+public abstract class TreeJournal {
+
+    // update(n) or apply() on the node at path; replaying update(n) there
+    // gives the same result. Batches arrive as the nodes they touched, in
+    // their state after the batch
+    public abstract void updated(String path, DeviceNode update);
+
+    // child, with its subtree, was added to the node at path
+    public abstract void childAdded(String path, DeviceNode child);
+
+    // the child called name was removed from the node at path
+    public abstract void childRemoved(String path, String name);
+}
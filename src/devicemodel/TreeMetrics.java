@@ -0,0 +1,377 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for one tree, cheap enough to leave on: recording
+ * uses striped counters and takes no locks. Enable it on the root:
+ *
+ *   TreeMetrics metrics = new TreeMetrics();
+ *   root.setMetrics(metrics);
+ *   metrics.register("chassis1");    // optional, for JMX
+ *
+ * It counts updates in total and per path prefix (the first prefixDepth
+ * names of the paths of the nodes an update changed), the listener
+ * fan-out of each update, how long handlers and listener dispatch take,
+ * and the number of nodes in the tree, which adding and removing children
+ * keeps up to date. When read, it also takes the sizes of the tree's
+ * subscription and attribute indexes. Read it with snapshot() or over JMX.
+ *
+ * @author root
+ */
+public class TreeMetrics implements TreeMetricsMBean {
+
+    private final int prefixDepth;
+    // the tree these are for; set by DeviceNode.setMetrics()
+    volatile DeviceNode root;
+    // nodes in the tree; counted once by attach(), then kept by DeviceNode
+    // as children come and go
+    final StripedCounter nodes = new StripedCounter();
+
+    private final StripedCounter updates = new StripedCounter();
+    private final StripedCounter changes = new StripedCounter();
+    // keyed by the prefix node; paths are worked out when read
+    private final ConcurrentHashMap<DeviceNode, StripedCounter> prefixes = new ConcurrentHashMap<>();
+    final Histogram fanOut = new Histogram();
+    final Histogram updateHandler = new Histogram();
+    final Histogram setHandler = new Histogram();
+    final Histogram getHandler = new Histogram();
+    final Histogram dispatch = new Histogram();
+
+    // previous snapshot, for rates
+    private long lastNanos = System.nanoTime();
+    private long lastUpdates;
+    private Map<DeviceNode, Long> lastPrefixes = new HashMap<>();
+    // what JMX reads; refreshed at most once a second
+    private volatile MetricsSnapshot latest;
+    private ObjectName name;
+
+    public TreeMetrics() {
+        this(2);
+    }
+
+    public TreeMetrics(int prefixDepth) {
+        this.prefixDepth = prefixDepth;
+    }
+
+    public int getPrefixDepth() {
+        return prefixDepth;
+    }
+
+    // start keeping the metrics of the tree at root; called by
+    // DeviceNode.setMetrics() while no one can change the tree
+    void attach(DeviceNode root) {
+        this.root = root;
+        nodes.reset();
+        nodes.add(count(root));
+    }
+
+    // an update of node's own value finished; changed if it fired events
+    void updated(DeviceNode node, boolean changed, int deliveries) {
+        counted(changed, deliveries);
+        countPrefix(prefixOf(node));
+    }
+
+    // an update of the subtree at node finished; change is its event tree,
+    // or null if nothing changed. It counts under the prefixes of the nodes
+    // it changed, each once, so an update of the whole tree made on the root
+    // shows up with the devices it touched
+    void updated(DeviceNode node, DeviceNode change, int deliveries) {
+        counted(change != null, deliveries);
+        int depth = depthOf(node);
+        if (change == null || depth >= prefixDepth) {
+            countPrefix(prefixOf(node));
+        } else {
+            countChanged(node, change, depth);
+        }
+    }
+
+    private void counted(boolean changed, int deliveries) {
+        updates.increment();
+        if (changed) {
+            changes.increment();
+            fanOut.record(deliveries);
+        }
+    }
+
+    // follow the event tree down to the prefix level, or to where it ends
+    private void countChanged(DeviceNode node, DeviceNode change, int depth) {
+        if (depth == prefixDepth || change.getChildren().isEmpty()) {
+            countPrefix(node);
+            return;
+        }
+        for (DeviceNode c : change.getChildren().values()) {
+            DeviceNode child = node.getChild(c.getName());
+            if (child != null) {
+                countChanged(child, c, depth + 1);
+            }
+        }
+    }
+
+    private void countPrefix(DeviceNode prefix) {
+        StripedCounter c = prefixes.get(prefix);
+        if (c == null) {
+            StripedCounter created = new StripedCounter();
+            c = prefixes.putIfAbsent(prefix, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        c.increment();
+    }
+
+    private static int depthOf(DeviceNode node) {
+        int depth = 0;
+        for (DeviceNode p = node.parent; p != null; p = p.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    // the ancestor prefixDepth levels below the root, or node itself if it
+    // isn't that deep
+    private DeviceNode prefixOf(DeviceNode node) {
+        int depth = depthOf(node);
+        DeviceNode prefix = node;
+        for (int i = depth; i > prefixDepth; i--) {
+            prefix = prefix.parent;
+        }
+        return prefix;
+    }
+
+    public synchronized MetricsSnapshot snapshot() {
+        long now = System.nanoTime();
+        double interval = Math.max(now - lastNanos, 1) / 1e9;
+        long u = updates.sum();
+        DeviceNode tree = root;
+
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        Map<String, Double> rates = new HashMap<>();
+        Map<DeviceNode, Long> current = new HashMap<>();
+        Iterator<Map.Entry<DeviceNode, StripedCounter>> i = prefixes.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<DeviceNode, StripedCounter> e = i.next();
+            DeviceNode prefix = e.getKey();
+            if (tree != null && prefix.getRoot() != tree) {
+                // removed from the tree since
+                i.remove();
+                continue;
+            }
+            long n = e.getValue().sum();
+            Long before = lastPrefixes.get(prefix);
+            String path = prefix.parent == null ? "/" : prefix.getRelativePath();
+            counts.add(new HashMap.SimpleImmutableEntry<>(path, n));
+            rates.put(path, (n - (before == null ? 0 : before)) / interval);
+            current.put(prefix, n);
+        }
+        Collections.sort(counts, new Comparator<Map.Entry<String, Long>>() {
+
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        Map<String, Long> prefixUpdates = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e : counts) {
+            prefixUpdates.put(e.getKey(), e.getValue());
+        }
+
+        int subscriptions = 0;
+        int queued = 0;
+        Map<String, Integer> indexSizes = new LinkedHashMap<>();
+        if (tree != null) {
+            TreeContext ctx = tree.getContext();
+            if (ctx != null) {
+                subscriptions = ctx.subscriptions.size();
+                for (AttributeIndex index : ctx.indexes.values()) {
+                    indexSizes.put(index.attribute, index.size());
+                }
+                if (ctx.dispatcher instanceof AsyncEventDispatcher) {
+                    queued = ((AsyncEventDispatcher) ctx.dispatcher).getQueueDepth();
+                }
+            }
+        }
+
+        MetricsSnapshot s = new MetricsSnapshot(System.currentTimeMillis(), interval, u, changes.sum(),
+                (u - lastUpdates) / interval, prefixUpdates, rates, fanOut.summary(),
+                updateHandler.summary(), setHandler.summary(), getHandler.summary(), dispatch.summary(),
+                (int) nodes.sum(), subscriptions, indexSizes, queued);
+        lastNanos = now;
+        lastUpdates = u;
+        lastPrefixes = current;
+        latest = s;
+        return s;
+    }
+
+    // nodes in a subtree
+    static int count(DeviceNode node) {
+        int n = 1;
+        for (DeviceNode c : node.children.values()) {
+            n += count(c);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void reset() {
+        updates.reset();
+        changes.reset();
+        prefixes.clear();
+        fanOut.reset();
+        updateHandler.reset();
+        setHandler.reset();
+        getHandler.reset();
+        dispatch.reset();
+        lastNanos = System.nanoTime();
+        lastUpdates = 0;
+        lastPrefixes = new HashMap<>();
+        latest = null;
+    }
+
+    // expose these metrics as devicemodel:type=TreeMetrics,name=<name>
+    public synchronized ObjectName register(String treeName) throws JMException {
+        unregister();
+        ObjectName n = new ObjectName("devicemodel:type=TreeMetrics,name=" + ObjectName.quote(treeName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+        name = n;
+        return n;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            name = null;
+        }
+    }
+
+    // JMX attributes are read one at a time; share one snapshot between them
+    private MetricsSnapshot recent() {
+        MetricsSnapshot s = latest;
+        if (s == null || System.currentTimeMillis() - s.getTime() > 1000) {
+            s = snapshot();
+        }
+        return s;
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return recent().getUpdates();
+    }
+
+    @Override
+    public long getChangeCount() {
+        return recent().getChanges();
+    }
+
+    @Override
+    public double getUpdateRate() {
+        return recent().getUpdateRate();
+    }
+
+    @Override
+    public String[] getHotPrefixes() {
+        MetricsSnapshot s = recent();
+        List<String> hot = new ArrayList<>();
+        for (Map.Entry<String, Long> e : s.getPrefixUpdates().entrySet()) {
+            if (hot.size() == 20) {
+                break;
+            }
+            hot.add(e.getKey() + " " + e.getValue() + " " + String.format("%.1f/s", s.getPrefixRates().get(e.getKey())));
+        }
+        return hot.toArray(new String[hot.size()]);
+    }
+
+    @Override
+    public double getMeanFanOut() {
+        return recent().getFanOut().getMean();
+    }
+
+    @Override
+    public long getMaxFanOut() {
+        return recent().getFanOut().getMax();
+    }
+
+    @Override
+    public double getUpdateHandlerMeanMicros() {
+        return recent().getUpdateHandler().getMean() / 1000;
+    }
+
+    @Override
+    public double getUpdateHandlerP99Micros() {
+        return recent().getUpdateHandler().getP99() / 1000.0;
+    }
+
+    @Override
+    public double getSetHandlerMeanMicros() {
+        return recent().getSetHandler().getMean() / 1000;
+    }
+
+    @Override
+    public double getSetHandlerP99Micros() {
+        return recent().getSetHandler().getP99() / 1000.0;
+    }
+
+    @Override
+    public double getGetHandlerMeanMicros() {
+        return recent().getGetHandler().getMean() / 1000;
+    }
+
+    @Override
+    public double getGetHandlerP99Micros() {
+        return recent().getGetHandler().getP99() / 1000.0;
+    }
+
+    @Override
+    public double getDispatchMeanMicros() {
+        return recent().getDispatch().getMean() / 1000;
+    }
+
+    @Override
+    public double getDispatchP99Micros() {
+        return recent().getDispatch().getP99() / 1000.0;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return recent().getNodes();
+    }
+
+    @Override
+    public int getSubscriptionCount() {
+        return recent().getSubscriptions();
+    }
+
+    @Override
+    public String[] getIndexSizes() {
+        List<String> sizes = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : recent().getIndexSizes().entrySet()) {
+            sizes.add(e.getKey() + " " + e.getValue());
+        }
+        return sizes.toArray(new String[sizes.size()]);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return recent().getQueueDepth();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+/**
+ * JMX view of a tree's metrics (see TreeMetrics). Times are in microseconds,
+ * rates per second over the interval since the previous reading.
+ *
+ * @author root
+ */
+public interface TreeMetricsMBean {
+
+    long getUpdateCount();
+
+    long getChangeCount();
+
+    double getUpdateRate();
+
+    // busiest path prefixes, "path count rate/s", busiest first
+    String[] getHotPrefixes();
+
+    double getMeanFanOut();
+
+    long getMaxFanOut();
+
+    double getUpdateHandlerMeanMicros();
+
+    double getUpdateHandlerP99Micros();
+
+    double getSetHandlerMeanMicros();
+
+    double getSetHandlerP99Micros();
+
+    double getGetHandlerMeanMicros();
+
+    double getGetHandlerP99Micros();
+
+    double getDispatchMeanMicros();
+
+    double getDispatchP99Micros();
+
+    int getNodeCount();
+
+    int getSubscriptionCount();
+
+    // indexed attributes with the number of nodes filed, "attribute count"
+    String[] getIndexSizes();
+
+    int getQueueDepth();
+
+    void reset();
+}
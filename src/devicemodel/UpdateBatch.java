@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A set of value and attribute changes addressed by path, applied in one step
+ * with DeviceNode.apply(). Paths are relative to the node the batch is
+ * applied to ("/child/grandchild"; "" or "/" for that node itself) and nodes
+ * that don't exist yet are created, as with update().
+ *
+ * The changes are grouped by path as they are added, so applying a batch
+ * walks each affected branch of the tree once and fires one merged event per
+ * affected node.
+ *
+ * @author root
+ */
+public class UpdateBatch {
+
+    final Entry root = new Entry(null);
+    private int size = 0;
+
+    public UpdateBatch setValue(String path, String value) {
+        return setValue(path, ValueType.STRING, 0, value);
+    }
+
+    public UpdateBatch setValue(String path, long value) {
+        return setValue(path, ValueType.LONG, value, null);
+    }
+
+    public UpdateBatch setValue(String path, double value) {
+        return setValue(path, ValueType.DOUBLE, Double.doubleToLongBits(value), null);
+    }
+
+    public UpdateBatch setValue(String path, boolean value) {
+        return setValue(path, ValueType.BOOLEAN, value ? 1 : 0, null);
+    }
+
+    private UpdateBatch setValue(String path, ValueType type, long bits, String text) {
+        Entry e = entry(path);
+        e.valueType = type;
+        e.bits = bits;
+        e.value = text;
+        size++;
+        return this;
+    }
+
+    public UpdateBatch setAttribute(String path, String name, String value) {
+        Entry e = entry(path);
+        if (e.attributes == null) {
+            e.attributes = new LinkedHashMap<>();
+        }
+        e.attributes.put(name, value);
+        size++;
+        return this;
+    }
+
+    // number of changes added so far
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private Entry entry(String path) {
+        Entry e = root;
+        int start = path.startsWith("/") ? 1 : 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                e = e.child(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return e;
+    }
+
+    // pending changes for one node
+    static final class Entry {
+
+        final String name;
+        // null when the value is left alone
+        ValueType valueType;
+        long bits;
+        String value;
+        Map<String, String> attributes;
+        final Map<String, Entry> children = new LinkedHashMap<>();
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        Entry child(String name) {
+            Entry c = children.get(name);
+            if (c == null) {
+                c = new Entry(name);
+                children.put(name, c);
+            }
+            return c;
+        }
+
+        // the node-level part of this entry, as update handlers expect it
+        DeviceNode toNode(String nodeName) {
+            DeviceNode n = new DeviceNode(nodeName);
+            if (valueType != null) {
+                n.setValue(valueType, bits, value);
+            } else {
+                n.setValue(null);
+            }
+            if (attributes != null) {
+                n.getAttributes().putAll(attributes);
+            }
+            return n;
+        }
+    }
+}
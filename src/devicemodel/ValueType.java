@@ -0,0 +1,118 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel;
+
+/**
+ * Type of a node's value. Typed values are kept as raw 64 bit patterns (the
+ * long itself, Double.doubleToLongBits, or 1/0) so setting and comparing them
+ * does not allocate; the text form is only built when someone asks for it.
+ *
+ * @author root
+ */
+public enum ValueType {
+
+    STRING, LONG, DOUBLE, BOOLEAN;
+
+    // text form of a typed value
+    public String format(long bits) {
+        switch (this) {
+            case LONG:
+                return Long.toString(bits);
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            case BOOLEAN:
+                return bits != 0 ? "true" : "false";
+            default:
+                throw new IllegalStateException("string values have no bits");
+        }
+    }
+
+    // bits of a value of this type given as text; throws
+    // NumberFormatException if the text doesn't hold one
+    public long parse(String text) {
+        String t = text.trim();
+        switch (this) {
+            case LONG:
+                return Long.parseLong(t);
+            case DOUBLE:
+                return Double.doubleToLongBits(Double.parseDouble(t));
+            case BOOLEAN:
+                if (t.equalsIgnoreCase("true") || t.equals("1")) {
+                    return 1;
+                }
+                if (t.equalsIgnoreCase("false") || t.equals("0")) {
+                    return 0;
+                }
+                throw new NumberFormatException("not a boolean: " + text);
+            default:
+                throw new IllegalStateException("string values have no bits");
+        }
+    }
+
+    // numeric views of a value of this type; string values are parsed and
+    // throw NumberFormatException if they aren't numbers
+    public long asLong(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits;
+            case DOUBLE:
+                return (long) Double.longBitsToDouble(bits);
+            default:
+                return Long.parseLong(text.trim());
+        }
+    }
+
+    public double asDouble(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return Double.parseDouble(text.trim());
+        }
+    }
+
+    public boolean asBoolean(long bits, String text) {
+        switch (this) {
+            case LONG:
+            case BOOLEAN:
+                return bits != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits) != 0;
+            default:
+                return Boolean.parseBoolean(text.trim());
+        }
+    }
+
+    // the value type named by a "type" attribute, e.g. type="int"; STRING
+    // for anything that isn't a known numeric or boolean type
+    public static ValueType forTypeName(String type) {
+        if (type == null) {
+            return STRING;
+        }
+        switch (type.toLowerCase()) {
+            case "int":
+            case "integer":
+            case "long":
+            case "short":
+            case "byte":
+                return LONG;
+            case "double":
+            case "float":
+            case "real":
+            case "number":
+                return DOUBLE;
+            case "bool":
+            case "boolean":
+                return BOOLEAN;
+            default:
+                return STRING;
+        }
+    }
+}
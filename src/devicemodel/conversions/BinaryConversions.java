@@ -0,0 +1,338 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.conversions;
+
+import devicemodel.DeviceNode;
+import devicemodel.DeviceTreeBuilder;
+import devicemodel.NodeView;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a node tree for shipping whole models between
+ * processes. Layout:
+ *
+ *   magic "DMB" + format version byte
+ *   string table: varint count, then per string a varint byte length and
+ *       its UTF-8 bytes; names, attribute keys/values and text values are
+ *       each stored once and referred to by index
+ *   root node: varint name index, varint attribute count with (key, value)
+ *       index pairs, a value tag with its payload, varint child count and
+ *       the children in getChildrenNamesSorted() order
+ *
+ * String references are stored as index + 1 so 0 can stand for null. Long
+ * values are zigzag varints and doubles their raw 8 bytes, so typed values
+ * come back exactly as they went out.
+ *
+ * @author root
+ */
+public class BinaryConversions {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = {'D', 'M', 'B', 1};
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_DOUBLE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_TRUE = 5;
+
+    public static byte[] nodeToBytes(NodeView node) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeBinary(node, out);
+        } catch (IOException ex) {
+            // ByteArrayOutputStream doesn't throw
+        }
+        return out.toByteArray();
+    }
+
+    // the stream is not flushed or closed
+    public static void writeBinary(NodeView node, OutputStream out) throws IOException {
+        Encoder enc = new Encoder();
+        enc.node(node);
+
+        Buffer header = new Buffer(64 + enc.strings.size() * 8);
+        header.bytes(MAGIC, 0, MAGIC.length);
+        header.varint(enc.strings.size());
+        for (String s : enc.strings) {
+            byte[] b = s.getBytes(UTF8);
+            header.varint(b.length);
+            header.bytes(b, 0, b.length);
+        }
+
+        out.write(header.data, 0, header.size);
+        out.write(enc.body.data, 0, enc.body.size);
+    }
+
+    public static DeviceNode bytesToNode(byte[] data) throws IOException {
+        return readBinary(ByteBuffer.wrap(data));
+    }
+
+    // decodes in place from the buffer, starting at its position; the
+    // position is left after the tree
+    public static DeviceNode readBinary(ByteBuffer in) throws IOException {
+        try {
+            for (byte m : MAGIC) {
+                if (in.get() != m) {
+                    throw new IOException("not a binary device model (or unsupported version)");
+                }
+            }
+
+            // every string takes at least its length byte, so a count or a
+            // length beyond what is left is corrupt; checked before anything
+            // is allocated for it
+            int count = checkLength(readVarint(in), in);
+            String[] strings = new String[count];
+            byte[] scratch = in.hasArray() ? null : new byte[64];
+            for (int i = 0; i < count; i++) {
+                int len = checkLength(readVarint(in), in);
+                if (in.hasArray()) {
+                    // straight from the backing array, no intermediate copy
+                    strings[i] = new String(in.array(), in.arrayOffset() + in.position(), len, UTF8);
+                    in.position(in.position() + len);
+                } else {
+                    if (scratch.length < len) {
+                        scratch = new byte[Math.max(len, scratch.length * 2)];
+                    }
+                    in.get(scratch, 0, len);
+                    strings[i] = new String(scratch, 0, len, UTF8);
+                }
+            }
+
+            DeviceTreeBuilder builder = new DeviceTreeBuilder(name(in, strings));
+            readNode(in, strings, builder);
+            return builder.build();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("truncated or corrupt binary device model", ex);
+        }
+    }
+
+    public static DeviceNode readBinary(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return bytesToNode(out.toByteArray());
+    }
+
+    // the rest of the node after its name; it is the builder's current node
+    private static void readNode(ByteBuffer in, String[] strings, DeviceTreeBuilder builder) throws IOException {
+        int attributes = readVarint(in);
+        for (int i = 0; i < attributes; i++) {
+            String key = name(in, strings);
+            builder.attribute(key, name(in, strings));
+        }
+
+        int tag = in.get();
+        switch (tag) {
+            case TAG_NULL:
+                builder.value((String) null);
+                break;
+            case TAG_STRING:
+                builder.value(string(in, strings));
+                break;
+            case TAG_LONG:
+                long z = readVarlong(in);
+                builder.value((z >>> 1) ^ -(z & 1));
+                break;
+            case TAG_DOUBLE:
+                builder.value(Double.longBitsToDouble(readLong(in)));
+                break;
+            case TAG_FALSE:
+                builder.value(false);
+                break;
+            case TAG_TRUE:
+                builder.value(true);
+                break;
+            default:
+                throw new IOException("unknown value tag " + tag);
+        }
+
+        int children = readVarint(in);
+        for (int i = 0; i < children; i++) {
+            builder.begin(name(in, strings));
+            readNode(in, strings, builder);
+            builder.end();
+        }
+    }
+
+    private static String string(ByteBuffer in, String[] strings) {
+        int ref = readVarint(in);
+        return ref == 0 ? null : strings[ref - 1];
+    }
+
+    // a string that can't be null: a name, or an attribute key or value
+    private static String name(ByteBuffer in, String[] strings) throws IOException {
+        String s = string(in, strings);
+        if (s == null) {
+            throw new IOException("corrupt binary device model: missing name");
+        }
+        return s;
+    }
+
+    // big-endian whatever the buffer's byte order is set to
+    private static long readLong(ByteBuffer in) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (in.get() & 0xff);
+        }
+        return v;
+    }
+
+    private static int checkLength(int n, ByteBuffer in) {
+        if (n < 0 || n > in.remaining()) {
+            throw new IndexOutOfBoundsException("length " + n + " with " + in.remaining() + " bytes left");
+        }
+        return n;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IndexOutOfBoundsException("varint too long");
+    }
+
+    // writes the node data while collecting the string table
+    private static final class Encoder {
+
+        final Map<String, Integer> index = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+        final Buffer body = new Buffer(4096);
+
+        void node(NodeView node) {
+            string(node.getName());
+
+            Map<String, String> attributes = node.getAttributes();
+            body.varint(attributes.size());
+            for (Map.Entry<String, String> a : attributes.entrySet()) {
+                string(a.getKey());
+                string(a.getValue());
+            }
+
+            switch (node.getValueType()) {
+                case LONG:
+                    long v = node.getLongValue();
+                    body.put(TAG_LONG);
+                    body.varlong((v << 1) ^ (v >> 63));
+                    break;
+                case DOUBLE:
+                    body.put(TAG_DOUBLE);
+                    body.putLong(Double.doubleToRawLongBits(node.getDoubleValue()));
+                    break;
+                case BOOLEAN:
+                    body.put(node.getBooleanValue() ? TAG_TRUE : TAG_FALSE);
+                    break;
+                default:
+                    String value = node.getValue();
+                    if (value == null) {
+                        body.put(TAG_NULL);
+                    } else {
+                        body.put(TAG_STRING);
+                        string(value);
+                    }
+            }
+
+            List<NodeView> children = new ArrayList<>();
+            for (String child : node.getChildrenNamesSorted()) {
+                NodeView c = node.getChild(child);
+                if (c != null) {
+                    children.add(c);
+                }
+            }
+            body.varint(children.size());
+            for (NodeView c : children) {
+                node(c);
+            }
+        }
+
+        void string(String s) {
+            if (s == null) {
+                body.varint(0);
+                return;
+            }
+            Integer i = index.get(s);
+            if (i == null) {
+                i = strings.size();
+                index.put(s, i);
+                strings.add(s);
+            }
+            body.varint(i + 1);
+        }
+    }
+
+    // growable byte array; cheaper than a ByteArrayOutputStream per byte
+    private static final class Buffer {
+
+        byte[] data;
+        int size;
+
+        Buffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (size + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+            }
+        }
+
+        void put(int b) {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        void bytes(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        void varint(int v) {
+            varlong(v & 0xffffffffL);
+        }
+
+        void varlong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                data[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+
+        // big-endian
+        void putLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[size++] = (byte) (v >>> shift);
+            }
+        }
+    }
+}
@@ -9,14 +9,30 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import devicemodel.DeviceNode;
+import devicemodel.DeviceTreeBuilder;
+import devicemodel.FragmentCache;
+import devicemodel.NodeDelta;
+import devicemodel.NodeView;
+import devicemodel.UpdateBatch;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -27,16 +43,266 @@ import java.util.Map;
  */
 public class JsonConversions {
 
-    public static String nodeToJson(DeviceNode node) {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-        JsonObject o = new JsonObject();
+    public static String nodeToJson(NodeView node) {
+        StringWriter out = new StringWriter();
+        try {
+            writeJson(node, out);
+        } catch (IOException ex) {
+            // StringWriter doesn't throw
+        }
+        return out.toString();
+    }
 
-        o.add(node.getName(), nodeToGson(node));
+    // streams {"name":{...}} straight from the node, in the same format as
+    // nodeToGson() builds, without an intermediate JsonObject
+    public static void writeJson(NodeView node, Writer out) throws IOException {
+        FragmentCache cache = node instanceof DeviceNode ? ((DeviceNode) node).getFragmentCache() : null;
+        if (cache != null) {
+            // the same text, mostly copied from cached fragments
+            StringBuilder sb = new StringBuilder();
+            sb.append('{');
+            quote(sb, node.getName());
+            sb.append(':');
+            appendNode(sb, (DeviceNode) node, cache);
+            sb.append('}');
+            out.append(sb);
+            out.flush();
+            return;
+        }
 
-        return o.toString();
+        JsonWriter writer = new JsonWriter(out);
+        // same settings as JsonElement.toString()
+        writer.setLenient(true);
+        writer.beginObject();
+        writer.name(node.getName());
+        writeNode(writer, node);
+        writer.endObject();
+        writer.flush();
     }
 
-    public static JsonObject nodeToGson(DeviceNode node) {
+    // UTF-8; the stream is flushed but not closed
+    public static void writeJson(NodeView node, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        writeJson(node, writer);
+        writer.flush();
+    }
+
+    // {"version":N,"removed":["/path",...],"changes":{"name":{...}}}; nodes
+    // in the changes that only lead to a change have no "value". A resync
+    // adds "resync":true, and the changes are then the whole subtree
+    public static String deltaToJson(NodeDelta delta) {
+        StringWriter out = new StringWriter();
+        try {
+            writeDelta(delta, out);
+        } catch (IOException ex) {
+            // StringWriter doesn't throw
+        }
+        return out.toString();
+    }
+
+    public static void writeDelta(NodeDelta delta, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        writer.beginObject();
+        writer.name("version").value(delta.getVersion());
+        if (delta.isResync()) {
+            writer.name("resync").value(true);
+        }
+        writer.name("removed");
+        writer.beginArray();
+        for (String path : delta.getRemovedPaths()) {
+            writer.value(path);
+        }
+        writer.endArray();
+        if (delta.getChanges() != null) {
+            writer.name("changes");
+            writer.beginObject();
+            writer.name(delta.getChanges().getName());
+            writeNode(writer, delta.getChanges());
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void writeNode(JsonWriter writer, NodeView node) throws IOException {
+        writer.beginObject();
+
+        Map<String, String> attributes = node.getAttributes();
+        if (attributes.size() > 0) {
+            writer.name("attributes");
+            writer.beginObject();
+            for (Map.Entry<String, String> a : attributes.entrySet()) {
+                writer.name(a.getKey()).value(a.getValue());
+            }
+            writer.endObject();
+        }
+
+        switch (node.getValueType()) {
+            case LONG:
+                writer.name("value").value(node.getLongValue());
+                break;
+            case DOUBLE:
+                double d = node.getDoubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    // only the Number overload lets a lenient writer through
+                    writer.name("value").value(Double.valueOf(d));
+                } else {
+                    writer.name("value").value(d);
+                }
+                break;
+            case BOOLEAN:
+                writer.name("value").value(node.getBooleanValue());
+                break;
+            default:
+                if (node.getValue() != null) {
+                    writer.name("value").value(node.getValue());
+                }
+        }
+
+        if (node.getChildren().size() > 0) {
+            for (String child : node.getChildrenNamesSorted()) {
+                NodeView c = node.getChild(child);
+                if (c != null) {
+                    writer.name(child);
+                    writeNode(writer, c);
+                }
+            }
+        }
+
+        writer.endObject();
+    }
+
+    // a branch's {...} from the cache, made and kept if it isn't there;
+    // leaves are cheaper to write again than to keep
+    private static void appendFragment(StringBuilder sb, DeviceNode node, FragmentCache cache) {
+        if (node.getChildren().isEmpty()) {
+            appendNode(sb, node, cache);
+            return;
+        }
+        long hash = node.getSubtreeHash();
+        String fragment = cache.get(node, FragmentCache.Format.JSON, hash);
+        if (fragment == null) {
+            StringBuilder own = new StringBuilder();
+            appendNode(own, node, cache);
+            fragment = own.toString();
+            cache.put(node, FragmentCache.Format.JSON, hash, fragment);
+        }
+        sb.append(fragment);
+    }
+
+    // what writeNode() writes, built by hand so cached fragments can go in
+    private static void appendNode(StringBuilder sb, DeviceNode node, FragmentCache cache) {
+        sb.append('{');
+        int start = sb.length();
+
+        Map<String, String> attributes = node.getAttributeSet();
+        if (attributes.size() > 0) {
+            sb.append("\"attributes\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> a : attributes.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                quote(sb, a.getKey());
+                sb.append(':');
+                quote(sb, a.getValue());
+            }
+            sb.append('}');
+        }
+
+        String value;
+        switch (node.getValueType()) {
+            case LONG:
+                value = Long.toString(node.getLongValue());
+                break;
+            case DOUBLE:
+                value = Double.toString(node.getDoubleValue());
+                break;
+            case BOOLEAN:
+                value = node.getBooleanValue() ? "true" : "false";
+                break;
+            default:
+                value = null;
+                String text = node.getValue();
+                if (text != null) {
+                    separate(sb, start);
+                    sb.append("\"value\":");
+                    quote(sb, text);
+                }
+        }
+        if (value != null) {
+            separate(sb, start);
+            sb.append("\"value\":").append(value);
+        }
+
+        for (String child : node.getChildrenNamesSorted()) {
+            DeviceNode c = node.getChild(child);
+            if (c != null) {
+                separate(sb, start);
+                quote(sb, child);
+                sb.append(':');
+                appendFragment(sb, c, cache);
+            }
+        }
+
+        sb.append('}');
+    }
+
+    private static void separate(StringBuilder sb, int start) {
+        if (sb.length() > start) {
+            sb.append(',');
+        }
+    }
+
+    // a JSON string, escaped like JsonWriter does
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\u2028':
+                    sb.append("\\u2028");
+                    break;
+                case '\u2029':
+                    sb.append("\\u2029");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    public static JsonObject nodeToGson(NodeView node) {
         JsonObject o = new JsonObject();
 
         if (node.getAttributes().size() > 0) {
@@ -49,8 +315,20 @@ public class JsonConversions {
             o.add("attributes", att);
         }
 
-        if (node.getValue() != null) {
-            o.addProperty("value", node.getValue());
+        switch (node.getValueType()) {
+            case LONG:
+                o.addProperty("value", node.getLongValue());
+                break;
+            case DOUBLE:
+                o.addProperty("value", node.getDoubleValue());
+                break;
+            case BOOLEAN:
+                o.addProperty("value", node.getBooleanValue());
+                break;
+            default:
+                if (node.getValue() != null) {
+                    o.addProperty("value", node.getValue());
+                }
         }
 
         if (node.getChildren().size() > 0) {
@@ -64,16 +342,152 @@ public class JsonConversions {
     }
 
     public static DeviceNode jsonToNode(String str) {
-        JsonObject e = jsonToGson(str);
+        try {
+            return readJson(new StringReader(str));
+        } catch (IOException ex) {
+            throw new JsonSyntaxException(ex);
+        }
+    }
+
+    // token-level counterpart of jsonToNode(); builds the nodes as it reads
+    public static DeviceNode readJson(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        DeviceTreeBuilder builder = new DeviceTreeBuilder(reader.nextName());
+        readNode(reader, builder);
+        reader.endObject();
+        return builder.build();
+    }
+
+    public static DeviceNode readJson(InputStream in) throws IOException {
+        return readJson(new BufferedReader(new InputStreamReader(in, UTF8)));
+    }
+
+    // stream a document into an existing node: the values and attributes
+    // read are applied as one UpdateBatch, so listeners get one merged event.
+    // Like update(), nothing happens if the document is for another node;
+    // returns false then
+    public static boolean readJson(Reader in, DeviceNode into) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        reader.beginObject();
+        String name = reader.nextName();
+        if (!name.equalsIgnoreCase(into.getName())) {
+            reader.skipValue();
+            return false;
+        }
+
+        UpdateBatch batch = new UpdateBatch();
+        readBatch(reader, "", batch);
+        reader.endObject();
+        into.apply(batch);
+        return true;
+    }
+
+    public static boolean readJson(InputStream in, DeviceNode into) throws IOException {
+        return readJson(new BufferedReader(new InputStreamReader(in, UTF8)), into);
+    }
+
+    // the builder's current node is the one read
+    private static void readNode(JsonReader reader, DeviceTreeBuilder builder) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+
+            if (key.equals("value")) {
+                switch (reader.peek()) {
+                    case BOOLEAN:
+                        builder.value(reader.nextBoolean());
+                        break;
+                    case NUMBER:
+                        number(builder, reader.nextString());
+                        break;
+                    case NULL:
+                        reader.nextNull();
+                        builder.value((String) null);
+                        break;
+                    default:
+                        builder.value(reader.nextString());
+                }
+            } else if (key.equals("attributes")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String attribute = reader.nextName();
+                    builder.attribute(attribute, nextStringOrNull(reader));
+                }
+                reader.endObject();
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                builder.begin(key);
+                readNode(reader, builder);
+                builder.end();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readBatch(JsonReader reader, String path, UpdateBatch batch) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
 
-        Map.Entry<String, JsonElement> next = e.entrySet().iterator().next();
+            if (key.equals("value")) {
+                switch (reader.peek()) {
+                    case BOOLEAN:
+                        batch.setValue(path, reader.nextBoolean());
+                        break;
+                    case NUMBER:
+                        String number = reader.nextString();
+                        if (isWholeNumber(number)) {
+                            try {
+                                batch.setValue(path, Long.parseLong(number));
+                                break;
+                            } catch (NumberFormatException ex) {
+                                // too big for a long
+                            }
+                        }
+                        batch.setValue(path, Double.parseDouble(number));
+                        break;
+                    case NULL:
+                        // null leaves the value alone, as with update()
+                        reader.nextNull();
+                        break;
+                    default:
+                        batch.setValue(path, reader.nextString());
+                }
+            } else if (key.equals("attributes")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String attribute = reader.nextName();
+                    batch.setAttribute(path, attribute, nextStringOrNull(reader));
+                }
+                reader.endObject();
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readBatch(reader, path + "/" + key, batch);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
 
-        return gsonToNode(next.getKey(), (JsonObject) next.getValue());
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
     }
 
     public static DeviceNode gsonToNode(String name, JsonObject e) {
-        DeviceNode n = new DeviceNode(name);
+        DeviceTreeBuilder builder = new DeviceTreeBuilder(name);
+        gsonToNode(e, builder);
+        return builder.build();
+    }
 
+    private static void gsonToNode(JsonObject e, DeviceTreeBuilder builder) {
         Iterator<Map.Entry<String, JsonElement>> iterator = e.entrySet().iterator();
 
         while (iterator.hasNext()) {
@@ -83,7 +497,13 @@ public class JsonConversions {
             if (next.getKey().equals("value")) {
                 JsonPrimitive val = next.getValue().getAsJsonPrimitive();
 
-                n.setValue(val.getAsString());
+                if (val.isBoolean()) {
+                    builder.value(val.getAsBoolean());
+                } else if (val.isNumber()) {
+                    number(builder, val.getAsString());
+                } else {
+                    builder.value(val.getAsString());
+                }
             } else if (next.getKey().equals("attributes")) {
                 JsonObject att = (JsonObject) next.getValue();
 
@@ -92,17 +512,31 @@ public class JsonConversions {
                 while (attributes.hasNext()) {
                     Map.Entry<String, JsonElement> a = attributes.next();
 
-                    n.addAttribute(a.getKey(), a.getValue().getAsString());
-                }
-            } else {
-                try {
-                    n.addChild(gsonToNode(next.getKey(), (JsonObject) next.getValue()));
-                } catch (Exception ex) {
+                    builder.attribute(a.getKey(), a.getValue().getAsString());
                 }
+            } else if (next.getValue() instanceof JsonObject) {
+                builder.begin(next.getKey());
+                gsonToNode((JsonObject) next.getValue(), builder);
+                builder.end();
+            }
+        }
+    }
+
+    // whole numbers become long values, anything else a double
+    private static void number(DeviceTreeBuilder builder, String number) {
+        if (isWholeNumber(number)) {
+            try {
+                builder.value(Long.parseLong(number));
+                return;
+            } catch (NumberFormatException ex) {
+                // too big for a long
             }
         }
+        builder.value(Double.parseDouble(number));
+    }
 
-        return n;
+    private static boolean isWholeNumber(String number) {
+        return number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0;
     }
 
     public static JsonObject jsonToGson(String str) {
@@ -111,13 +545,8 @@ public class JsonConversions {
     }
 
     public static DeviceNode jsonToNode(File f) throws Exception {
-        BufferedReader reader = new BufferedReader(new FileReader(f));
-
-        JsonParser parser = new JsonParser();
-        JsonObject gson = (JsonObject) parser.parse(reader);
-
-        Map.Entry<String, JsonElement> next = gson.entrySet().iterator().next();
-
-        return gsonToNode(next.getKey(), (JsonObject) next.getValue());
+        try (InputStream in = new FileInputStream(f)) {
+            return readJson(in);
+        }
     }
 }
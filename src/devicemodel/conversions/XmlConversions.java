@@ -6,6 +6,9 @@
 package devicemodel.conversions;
 
 import devicemodel.DeviceNode;
+import devicemodel.DeviceTreeBuilder;
+import devicemodel.NodeView;
+import devicemodel.ValueType;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
@@ -25,7 +28,7 @@ import org.jdom2.output.XMLOutputter;
  */
 public class XmlConversions {
 
-    public static Element nodeToXml(DeviceNode node) {
+    public static Element nodeToXml(NodeView node) {
         Element elem = new Element(node.getName());
         if (node.getAttributes().size() > 0) {
             for (String key : node.getAttributes().keySet()) {
@@ -51,43 +54,48 @@ public class XmlConversions {
     }
 
     public static DeviceNode xmlToNode(Element e, String id) {
+        DeviceTreeBuilder builder = new DeviceTreeBuilder(e.getName() + id);
+        xmlToNode(e, builder);
+        return builder.build();
+    }
 
-        String[] ids = new String[]{""};
-
-        if (e.getAttribute("ids") != null) {
-            ids = e.getAttributeValue("ids").split(",");
-            e.removeAttribute("ids");
-        }
-
-        DeviceNode node = new DeviceNode(e.getName() + id);
+    // the element's node is the builder's current one
+    private static void xmlToNode(Element e, DeviceTreeBuilder builder) {
 
-        node.setValue(e.getTextTrim());
+        // a type attribute such as type="int" makes the value typed
+        builder.value(e.getTextTrim(), ValueType.forTypeName(e.getAttributeValue("type")));
 
         for (Attribute a : e.getAttributes()) {
-            node.getAttributes().put(a.getName(), a.getValue());
+            if (!a.getName().equals("ids")) {
+                builder.attribute(a.getName(), a.getValue());
+            }
         }
 
-        for (String cid : ids) {
-            for (Element c : e.getChildren()) {
-                try {
-                    node.addChild(xmlToNode(c, cid));
-                } catch (Exception ex) {
+        String ids = e.getAttributeValue("ids");
+        for (Element c : e.getChildren()) {
+            if (ids == null) {
+                builder.begin(c.getName());
+                xmlToNode(c, builder);
+                builder.end();
+            } else {
+                // every child is read once; that is the template its copies
+                // are stamped from (see DeviceNode.cloneDeep(String))
+                DeviceNode template = xmlToNode(c, "");
+                for (String cid : ids.split(",")) {
+                    builder.add(template.cloneDeep(c.getName() + cid));
                 }
             }
         }
-
-        return node;
     }
 
+    // streams the file with XmlStreamConversions; no JDOM document is built
     public static DeviceNode xmlToNode(File f) throws IOException, JDOMException {
-        SAXBuilder docBuilder = new SAXBuilder();
-        Document doc = docBuilder.build(f);
-
-        return xmlToNode(doc.getRootElement());
+        return XmlStreamConversions.readXml(f);
     }
 
-    public static String nodeToXmlString(DeviceNode node) throws IOException {
-        return element2XmlString(nodeToXml(node));
+    public static String nodeToXmlString(NodeView node) throws IOException {
+        // the element is new, so it can go into a document without a copy
+        return document2XmlStringNoHeader(new Document(nodeToXml(node)));
     }
 
     public static String document2XmlStringNoHeader(final Document doc) throws IOException {
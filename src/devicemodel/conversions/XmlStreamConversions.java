@@ -0,0 +1,326 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.conversions;
+
+import devicemodel.DeviceNode;
+import devicemodel.DeviceTreeBuilder;
+import devicemodel.FragmentCache;
+import devicemodel.NodeView;
+import devicemodel.ValueType;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * StAX counterparts of XmlConversions that go straight between XML and
+ * DeviceNode without building a JDOM document. Reading follows the same
+ * rules as XmlConversions.xmlToNode(Element): an "ids" attribute makes the
+ * element's children repeat once per listed id, with the id appended to each
+ * child's name.
+ *
+ * @author root
+ */
+public class XmlStreamConversions {
+
+    private static final XMLInputFactory INPUT = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newInstance();
+    private static final String INDENT = "  ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static {
+        INPUT.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    public static DeviceNode readXml(File f) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+            return readXml(in);
+        }
+    }
+
+    public static DeviceNode readXml(InputStream in) throws IOException {
+        try {
+            return readDocument(INPUT.createXMLStreamReader(in));
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public static DeviceNode readXml(Reader in) throws IOException {
+        try {
+            return readDocument(INPUT.createXMLStreamReader(in));
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static DeviceNode readDocument(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip prolog, comments, processing instructions
+            }
+            DeviceTreeBuilder builder = new DeviceTreeBuilder(reader.getLocalName());
+            readElement(reader, builder);
+            return builder.build();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // reader is on the element's START_ELEMENT and is left on its END_ELEMENT;
+    // the element's node is the builder's current one
+    private static void readElement(XMLStreamReader reader, DeviceTreeBuilder builder) throws XMLStreamException {
+        String[] ids = null;
+        String type = null;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            if (name.equals("ids")) {
+                ids = value.split(",");
+            } else {
+                if (name.equals("type")) {
+                    type = value;
+                }
+                builder.attribute(name, value);
+            }
+        }
+
+        StringBuilder text = null;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    if (ids == null) {
+                        builder.begin(name);
+                        readElement(reader, builder);
+                        builder.end();
+                    } else {
+                        // one copy of the child per id, stamped from the
+                        // child as read (see DeviceNode.cloneDeep(String))
+                        DeviceTreeBuilder template = new DeviceTreeBuilder(name);
+                        readElement(reader, template);
+                        DeviceNode t = template.build();
+                        for (String cid : ids) {
+                            builder.add(t.cloneDeep(name + cid));
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (text == null) {
+                        text = new StringBuilder();
+                    }
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                default:
+                    // comments and processing instructions carry no data
+            }
+        }
+
+        builder.value(text == null ? "" : text.toString().trim(), ValueType.forTypeName(type));
+    }
+
+    public static String nodeToXmlString(NodeView node, boolean pretty) throws IOException {
+        StringWriter out = new StringWriter();
+        writeXml(node, out, pretty);
+        return out.toString();
+    }
+
+    // no XML declaration, like XmlConversions.nodeToXmlString(); the stream
+    // is flushed but not closed
+    public static void writeXml(NodeView node, OutputStream out, boolean pretty) throws IOException {
+        String cached = fromCache(node, pretty);
+        if (cached != null) {
+            out.write(cached.getBytes(UTF8));
+            out.flush();
+            return;
+        }
+        try {
+            write(OUTPUT.createXMLStreamWriter(out, "UTF-8"), node, pretty);
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public static void writeXml(NodeView node, Writer out, boolean pretty) throws IOException {
+        String cached = fromCache(node, pretty);
+        if (cached != null) {
+            out.write(cached);
+            out.flush();
+            return;
+        }
+        try {
+            write(OUTPUT.createXMLStreamWriter(out), node, pretty);
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static void write(XMLStreamWriter writer, NodeView node, boolean pretty) throws XMLStreamException {
+        writeElement(writer, node, pretty ? 0 : -1);
+        if (pretty) {
+            writer.writeCharacters("\n");
+        }
+        writer.flush();
+        // closes the writer only, not the underlying stream
+        writer.close();
+    }
+
+    // depth is -1 for compact output
+    private static void writeElement(XMLStreamWriter writer, NodeView node, int depth) throws XMLStreamException {
+        String value = node.getValue();
+        boolean hasValue = value != null && !value.isEmpty();
+        boolean hasChildren = node.getChildren().size() > 0;
+
+        if (!hasValue && !hasChildren) {
+            writer.writeEmptyElement(node.getName());
+        } else {
+            writer.writeStartElement(node.getName());
+        }
+        for (Map.Entry<String, String> a : node.getAttributes().entrySet()) {
+            if (a.getValue() != null) {
+                writer.writeAttribute(a.getKey(), a.getValue());
+            }
+        }
+        if (!hasValue && !hasChildren) {
+            return;
+        }
+
+        if (hasValue) {
+            writer.writeCharacters(value);
+        }
+        if (hasChildren) {
+            for (String child : node.getChildrenNamesSorted()) {
+                NodeView c = node.getChild(child);
+                if (c == null) {
+                    continue;
+                }
+                if (depth >= 0) {
+                    newLine(writer, depth + 1);
+                }
+                writeElement(writer, c, depth < 0 ? -1 : depth + 1);
+            }
+            if (depth >= 0) {
+                newLine(writer, depth);
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    // compact output of a node whose tree has a FragmentCache, mostly copied
+    // from cached fragments; null if the cache doesn't apply
+    private static String fromCache(NodeView node, boolean pretty) {
+        if (pretty || !(node instanceof DeviceNode)) {
+            return null;
+        }
+        FragmentCache cache = ((DeviceNode) node).getFragmentCache();
+        if (cache == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendFragment(sb, (DeviceNode) node, cache);
+        return sb.toString();
+    }
+
+    // a branch's element from the cache, made and kept if it isn't there;
+    // leaves are cheaper to write again than to keep
+    private static void appendFragment(StringBuilder sb, DeviceNode node, FragmentCache cache) {
+        if (node.getChildren().isEmpty()) {
+            appendElement(sb, node, cache);
+            return;
+        }
+        long hash = node.getSubtreeHash();
+        String fragment = cache.get(node, FragmentCache.Format.XML, hash);
+        if (fragment == null) {
+            StringBuilder own = new StringBuilder();
+            appendElement(own, node, cache);
+            fragment = own.toString();
+            cache.put(node, FragmentCache.Format.XML, hash, fragment);
+        }
+        sb.append(fragment);
+    }
+
+    // what compact writeElement() writes, built by hand so cached fragments
+    // can go in
+    private static void appendElement(StringBuilder sb, DeviceNode node, FragmentCache cache) {
+        String value = node.getValue();
+        boolean hasValue = value != null && !value.isEmpty();
+        boolean hasChildren = node.getChildren().size() > 0;
+
+        sb.append('<').append(node.getName());
+        for (Map.Entry<String, String> a : node.getAttributeSet().entrySet()) {
+            sb.append(' ').append(a.getKey()).append("=\"");
+            escape(sb, a.getValue(), true);
+            sb.append('"');
+        }
+        if (!hasValue && !hasChildren) {
+            sb.append("/>");
+            return;
+        }
+        sb.append('>');
+
+        if (hasValue) {
+            escape(sb, value, false);
+        }
+        if (hasChildren) {
+            for (String child : node.getChildrenNamesSorted()) {
+                DeviceNode c = node.getChild(child);
+                if (c != null) {
+                    appendFragment(sb, c, cache);
+                }
+            }
+        }
+        sb.append("</").append(node.getName()).append('>');
+    }
+
+    // escaped like the StAX writer does
+    private static void escape(StringBuilder sb, String s, boolean attribute) {
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    sb.append(ch);
+            }
+        }
+    }
+
+    private static void newLine(XMLStreamWriter writer, int depth) throws XMLStreamException {
+        writer.writeCharacters("\n");
+        for (int i = 0; i < depth; i++) {
+            writer.writeCharacters(INDENT);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.persistence;
+
+import devicemodel.DeviceNode;
+import devicemodel.NodeSnapshot;
+import devicemodel.TreeJournal;
+import devicemodel.conversions.BinaryConversions;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a tree on disk so it comes back after a restart without re-reading
+ * the XML and re-polling every device. Every change applied through
+ * update(), apply(), addChild() and removeChild() is appended to a
+ * memory-mapped, checksummed log; now and then the whole tree is written as
+ * a binary snapshot (see BinaryConversions) and the log before it dropped.
+ *
+ *   DeviceStore store = new DeviceStore(new File("state"));
+ *   DeviceNode root = store.load();
+ *   if (root == null) {
+ *       root = XmlConversions.xmlToNode(new File("model.xml"));
+ *   }
+ *   store.attach(root);
+ *
+ * The directory holds snapshot-N.dmb, the tree as of the start of log-N.wal,
+ * and the log files from N on. load() reads the newest snapshot and replays
+ * the logs after it. Snapshots are written to a temporary file and renamed
+ * into place, and end in a CRC32 of their contents.
+ *
+ * Records reach the page cache as soon as they are written, so they survive
+ * the process dying; call sync() to get them onto the disk itself.
+ *
+ * @author root
+ */
+public class DeviceStore extends TreeJournal {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte OP_UPDATE = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String LOG = "log-";
+
+    private final File dir;
+    private final int segmentCapacity;
+    // log size that triggers a checkpoint in the background
+    private volatile long checkpointSize = 64L << 20;
+    private volatile LogSegment log;
+    private DeviceNode root;
+    // the tree load() built, if any; attaching it needs no new snapshot
+    private DeviceNode loaded;
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "device-store-checkpoint");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public DeviceStore(File dir) throws IOException {
+        this(dir, 16 << 20);
+    }
+
+    // segmentCapacity is how much of a new log file is mapped up front; the
+    // mapping grows if a log gets bigger than that before a checkpoint
+    public DeviceStore(File dir, int segmentCapacity) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        this.dir = dir;
+        this.segmentCapacity = segmentCapacity;
+    }
+
+    public void setCheckpointSize(long bytes) {
+        this.checkpointSize = bytes;
+    }
+
+    // the tree as last saved: the newest snapshot with the logs after it
+    // replayed, or null if there is no snapshot yet
+    public synchronized DeviceNode load() throws IOException {
+        List<Long> snapshots = sequences(SNAPSHOT);
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        long base = snapshots.get(snapshots.size() - 1);
+        DeviceNode tree = readSnapshot(file(SNAPSHOT, base));
+
+        // no journal on this tree yet, so nothing replayed is logged again
+        for (long seq : sequences(LOG)) {
+            if (seq >= base) {
+                for (ByteBuffer record : LogSegment.read(file(LOG, seq))) {
+                    replay(tree, record);
+                }
+            }
+        }
+
+        loaded = tree;
+        return tree;
+    }
+
+    // start logging the changes to root; a tree that didn't come from load()
+    // gets a snapshot first, which also drops anything saved before it
+    public synchronized void attach(DeviceNode root) throws IOException {
+        if (this.root != null) {
+            throw new IllegalStateException("already attached to " + this.root.getName());
+        }
+        long next = 1;
+        for (long seq : sequences(LOG)) {
+            next = Math.max(next, seq + 1);
+        }
+        for (long seq : sequences(SNAPSHOT)) {
+            next = Math.max(next, seq + 1);
+        }
+        log = new LogSegment(file(LOG, next), next, segmentCapacity);
+        this.root = root;
+        root.setJournal(this);
+        if (root != loaded) {
+            checkpoint();
+        }
+        loaded = null;
+    }
+
+    // write a snapshot of the attached tree and start a new log after it
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            if (root == null) {
+                throw new IllegalStateException("nothing attached");
+            }
+            // changes logged from here on go to the new file. Anything in
+            // the old one was applied before it was logged, so it is in the
+            // snapshot taken below; changes that land in both are simply
+            // replayed on top of themselves
+            LogSegment old = log;
+            long seq = old.sequence + 1;
+            log = new LogSegment(file(LOG, seq), seq, segmentCapacity);
+
+            NodeSnapshot s = root.currentSnapshot();
+            writeSnapshot(s, seq);
+            old.close();
+
+            for (long l : sequences(LOG)) {
+                if (l < seq) {
+                    file(LOG, l).delete();
+                }
+            }
+            for (long l : sequences(SNAPSHOT)) {
+                if (l < seq) {
+                    file(SNAPSHOT, l).delete();
+                }
+            }
+        }
+    }
+
+    // force logged changes out to the disk
+    public void sync() {
+        LogSegment l = log;
+        if (l != null) {
+            l.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (root != null) {
+            root.setJournal(null);
+        }
+        checkpointer.shutdown();
+        synchronized (checkpointLock) {
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    @Override
+    public void updated(String path, DeviceNode update) {
+        append(OP_UPDATE, path, update, null);
+    }
+
+    @Override
+    public void childAdded(String path, DeviceNode child) {
+        append(OP_ADD, path, child, null);
+    }
+
+    @Override
+    public void childRemoved(String path, String name) {
+        append(OP_REMOVE, path, null, name);
+    }
+
+    // record: op byte, path, then the node in binary form or the child name
+    private void append(byte op, String path, DeviceNode node, String name) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            writeString(out, path);
+            if (node != null) {
+                BinaryConversions.writeBinary(node, out);
+            } else {
+                writeString(out, name);
+            }
+            out.flush();
+
+            LogSegment l = log;
+            l.append(bytes.toByteArray());
+            if (l.size() > checkpointSize && checkpointPending.compareAndSet(false, true)) {
+                checkpointer.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            checkpoint();
+                        } catch (IOException ex) {
+                            Logger.getLogger(DeviceStore.class.getName()).log(Level.SEVERE, null, ex);
+                        } finally {
+                            checkpointPending.set(false);
+                        }
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(DeviceStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static void replay(DeviceNode tree, ByteBuffer record) throws IOException {
+        byte op = record.get();
+        String path = readString(record);
+        DeviceNode target = path.isEmpty() ? tree : tree.getChildByPath(path);
+        if (target == null) {
+            // under a child removed later on
+            return;
+        }
+        switch (op) {
+            case OP_UPDATE:
+                target.update(BinaryConversions.readBinary(record));
+                break;
+            case OP_ADD:
+                try {
+                    target.addChild(BinaryConversions.readBinary(record));
+                } catch (Exception ex) {
+                    // we just made this child; it'll always have a null parent
+                }
+                break;
+            case OP_REMOVE:
+                target.removeChild(readString(record));
+                break;
+            default:
+                throw new IOException("unknown log record " + op);
+        }
+    }
+
+    private void writeSnapshot(NodeSnapshot s, long seq) throws IOException {
+        File tmp = new File(dir, SNAPSHOT + seq + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32());
+            OutputStream out = new BufferedOutputStream(checked, 1 << 16);
+            BinaryConversions.writeBinary(s, out);
+            out.flush();
+            DataOutputStream trailer = new DataOutputStream(file);
+            trailer.writeLong(checked.getChecksum().getValue());
+            trailer.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file(SNAPSHOT, seq).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static DeviceNode readSnapshot(File f) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < 8) {
+                throw new IOException("snapshot " + f + " is truncated");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            long expected = map.getLong((int) size - 8);
+            map.limit((int) size - 8);
+
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[1 << 16];
+            ByteBuffer body = map.duplicate();
+            while (body.hasRemaining()) {
+                int n = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+            if (crc.getValue() != expected) {
+                throw new IOException("snapshot " + f + " fails its checksum");
+            }
+            return BinaryConversions.readBinary(map);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, UTF8);
+    }
+
+    private File file(String prefix, long seq) {
+        return new File(dir, prefix + seq + (prefix.equals(LOG) ? ".wal" : ".dmb"));
+    }
+
+    // sequence numbers of the complete files with this prefix, ascending
+    private List<Long> sequences(String prefix) {
+        String suffix = prefix.equals(LOG) ? ".wal" : ".dmb";
+        List<Long> seqs = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String n : names) {
+                if (n.startsWith(prefix) && n.endsWith(suffix)) {
+                    try {
+                        seqs.add(Long.parseLong(n.substring(prefix.length(), n.length() - suffix.length())));
+                    } catch (NumberFormatException ex) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the write-ahead log, memory-mapped for appending. Records are
+ * an int payload length, the CRC32 of the payload and the payload itself.
+ * The mapped region beyond the last record is zeros, so a zero length marks
+ * the end; a record cut short by a crash fails its checksum and ends the log
+ * there too.
+ *
+ * @author root
+ */
+final class LogSegment {
+
+    private static final int HEADER = 8;
+
+    final long sequence;
+    final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private final CRC32 crc = new CRC32();
+
+    LogSegment(File file, long sequence, int capacity) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, HEADER * 2));
+    }
+
+    synchronized void append(byte[] payload) throws IOException {
+        // room for this record and the zero length after it
+        int needed = HEADER + payload.length + 4;
+        if (map.remaining() < needed) {
+            grow(needed);
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        map.putInt(payload.length);
+        map.putInt((int) crc.getValue());
+        map.put(payload);
+    }
+
+    synchronized int size() {
+        return map.position();
+    }
+
+    // flush written records to the disk, not just the page cache
+    synchronized void force() {
+        map.force();
+    }
+
+    synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+        raf.close();
+    }
+
+    private void grow(int needed) throws IOException {
+        int position = map.position();
+        long capacity = Math.max((long) map.capacity() * 2, (long) position + needed);
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("log segment " + file + " is full");
+        }
+        map.force();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        map.position(position);
+    }
+
+    // the intact records of a segment file, in order
+    static List<ByteBuffer> read(File file) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (map.remaining() >= HEADER) {
+                int length = map.getInt();
+                int sum = map.getInt();
+                if (length <= 0 || length > map.remaining()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                map.get(data);
+                crc.reset();
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != sum) {
+                    // torn write; nothing after it can be trusted
+                    break;
+                }
+                records.add(ByteBuffer.wrap(data));
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import devicemodel.AsyncEventDispatcher;
+import devicemodel.DeviceNode;
+import devicemodel.EventDispatcher;
+import devicemodel.SetResult;
+import devicemodel.conversions.JsonConversions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a tree over HTTP with the JDK's built-in server, the REST glue
+ * every user of the library would otherwise write around getChildByPath(),
+ * get(), set() and JsonConversions. The URL path is the node's path below
+ * the root, so with a root "Chassis", http://host:port/Card1/Port1 is
+ * Chassis/Card1/Port1 and http://host:port/ the root itself.
+ *
+ *   GET    the subtree as JSON, in the format of JsonConversions, written
+ *          straight to the socket. With ?refresh the get handlers below
+ *          are run first (see DeviceNode.get()). Every response carries
+ *          the subtree's ETag; a request whose If-None-Match has it gets a
+ *          304 and no body. HEAD works too.
+ *   GET    with "Accept: text/event-stream": server-sent events. A "state"
+ *          event with the subtree first, then a "change" event with the
+ *          change tree (see DeviceNode.update()) of every change below.
+ *   PUT    a JSON document for the node is handed to its set handlers and
+ *          those below, through DeviceNode.setParallel(). 204 if they all
+ *          succeed, else 502 with what became of each as {"path":"OUTCOME"}.
+ *   PATCH  the values and attributes of a JSON document for the node are
+ *          applied to the tree as one update (JsonConversions.readJson()).
+ *          204 with the new ETag.
+ * PUT and PATCH honor If-Match, answering 412 if the subtree has changed
+ * since the client's tag was made; the check is not atomic with the write.
+ *
+ * Requests are handled on an executor, by default a pool that starts a
+ * thread per concurrent request. Event streams take no thread while they
+ * wait: a change is turned into text once per node and queued to every
+ * client streaming that node, and a small pool of its own writes the
+ * queues out (see EventStream). Streams whose clients stop reading are
+ * disconnected once they fall too far behind or a write to them blocks for
+ * longer than the write timeout. Setting a FragmentCache on the tree makes repeated GETs of
+ * large subtrees cheap; with the default synchronous event dispatcher the
+ * change events are serialized on the updating thread, so busy trees
+ * should use an AsyncEventDispatcher.
+ *
+ * @author root
+ */
+public class DeviceServer {
+
+    // a comment line sent on every event stream this often, so dead
+    // clients are found and proxies don't time out the connection
+    public static final long KEEPALIVE_SECONDS = 15;
+    // by default, an event stream whose socket write takes longer than this
+    // is disconnected, so clients that stop reading don't hold the writers
+    public static final long WRITE_TIMEOUT_SECONDS = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] KEEPALIVE = ":\n\n".getBytes(UTF8);
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String EVENT_STREAM = "text/event-stream";
+
+    private final DeviceNode root;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // shut down by stop() if we made it
+    private final boolean ownExecutor;
+    // writes the event streams; a few threads, as writes rarely block
+    private final ExecutorService writers;
+    private final ScheduledExecutorService keepalive;
+    // event streams by node; guarded by itself
+    private final Map<DeviceNode, EventStream> streams = new IdentityHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private volatile long writeTimeout = TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT_SECONDS);
+
+    public DeviceServer(DeviceNode root, int port) throws IOException {
+        this(root, new InetSocketAddress(port), null);
+    }
+
+    // executor null for the default pool of daemon threads
+    public DeviceServer(DeviceNode root, InetSocketAddress address, ExecutorService executor) throws IOException {
+        this.root = root;
+        this.ownExecutor = executor == null;
+        this.executor = executor == null ? newDefaultExecutor() : executor;
+        this.writers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-server-events-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // a long backlog, for many event streams connecting at once
+        this.server = HttpServer.create(address, 1024);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                DeviceServer.this.handle(exchange);
+            }
+        });
+        this.keepalive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-server-keepalive");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        keepalive.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                for (EventStream.Client c : allClients()) {
+                    c.offer(KEEPALIVE);
+                }
+            }
+        }, KEEPALIVE_SECONDS, KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+        // the write watchdog, on the same thread
+        keepalive.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                long deadline = System.nanoTime() - writeTimeout;
+                for (EventStream.Client c : allClients()) {
+                    c.checkWrite(deadline);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // end the event streams and stop serving; requests in progress get a
+    // second to finish
+    public void stop() {
+        keepalive.shutdownNow();
+        for (EventStream.Client c : allClients()) {
+            c.close();
+        }
+        server.stop(1);
+        writers.shutdown();
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    // the address the server listens on, e.g. to find the port picked
+    // when it was created with port 0
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    // how long a write to an event stream may block before the stream is
+    // disconnected; checked once a second
+    public void setWriteTimeout(long millis) {
+        writeTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public long getWriteTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(writeTimeout);
+    }
+
+    // open event streams
+    public int getSubscriberCount() {
+        return subscribers.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            DeviceNode node = resolve(exchange.getRequestURI());
+            if (node == null) {
+                send(exchange, 404, "no node at " + exchange.getRequestURI().getPath());
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            switch (method) {
+                case "GET":
+                case "HEAD":
+                    String accept = exchange.getRequestHeaders().getFirst("Accept");
+                    if (method.equals("GET") && accept != null && accept.contains(EVENT_STREAM)) {
+                        stream(exchange, node);
+                    } else {
+                        get(exchange, node, method.equals("HEAD"));
+                    }
+                    break;
+                case "PUT":
+                    put(exchange, node);
+                    break;
+                case "PATCH":
+                    patch(exchange, node);
+                    break;
+                default:
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD, PUT, PATCH");
+                    send(exchange, 405, method + " not allowed");
+            }
+        } catch (IOException ex) {
+            // the client went away
+            exchange.close();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(DeviceServer.class.getName()).log(Level.SEVERE, null, ex);
+            send(exchange, 500, String.valueOf(ex));
+        }
+    }
+
+    // the node the URL path names, relative to the root
+    private DeviceNode resolve(URI uri) {
+        String path = uri.getPath();
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.isEmpty() || path.equals("/") ? root : root.getChildByPath(path);
+    }
+
+    private void get(HttpExchange exchange, DeviceNode node, boolean head) throws IOException {
+        DeviceNode view = hasParameter(exchange.getRequestURI(), "refresh") ? node.get() : node;
+        // taken before the body is written, so the body is never older
+        // than its tag
+        String etag = view.getETag();
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", etag);
+        headers.set("Cache-Control", "no-cache");
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        headers.set("Content-Type", JSON);
+        if (head) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        // chunked; written as it is serialized
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            JsonConversions.writeJson(view, out);
+        }
+    }
+
+    private void stream(HttpExchange exchange, DeviceNode node) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", EVENT_STREAM + "; charset=utf-8");
+        headers.set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        // added before the state is taken, so no change falls in between;
+        // changes already in the state may come again after it
+        EventStream.Client client = new EventStream.Client(exchange, writers, this);
+        addClient(node, client);
+        client.start(EventStream.event("state", JsonConversions.nodeToJson(node)));
+        // the exchange stays open; the client's writing task closes it
+    }
+
+    private void put(HttpExchange exchange, DeviceNode node) throws IOException {
+        if (!ifMatch(exchange, node)) {
+            return;
+        }
+        DeviceNode n;
+        try (InputStream in = exchange.getRequestBody()) {
+            n = JsonConversions.readJson(in);
+        } catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException ex) {
+            badDocument(exchange, ex);
+            return;
+        }
+        if (!n.getName().equalsIgnoreCase(node.getName())) {
+            send(exchange, 400, "document is for " + n.getName() + ", not " + node.getName());
+            return;
+        }
+
+        SetResult result = node.setParallel(n);
+        if (result.isSuccess()) {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        JsonObject outcomes = new JsonObject();
+        for (Map.Entry<String, SetResult.Outcome> e : result.getOutcomes().entrySet()) {
+            Throwable error = result.getError(e.getKey());
+            outcomes.addProperty(e.getKey(), error == null ? e.getValue().toString() : e.getValue() + ": " + error);
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        send(exchange, 502, outcomes.toString());
+    }
+
+    private void patch(HttpExchange exchange, DeviceNode node) throws IOException {
+        if (!ifMatch(exchange, node)) {
+            return;
+        }
+        boolean applied;
+        try (InputStream in = exchange.getRequestBody()) {
+            applied = JsonConversions.readJson(in, node);
+        } catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException ex) {
+            badDocument(exchange, ex);
+            return;
+        }
+        if (!applied) {
+            send(exchange, 400, "document is not for " + node.getName());
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", node.getETag());
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    // false, with a 412 sent, if the request has an If-Match the node's
+    // tag doesn't match
+    private boolean ifMatch(HttpExchange exchange, DeviceNode node) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("If-Match");
+        if (header == null || matches(header, node.getETag())) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("ETag", node.getETag());
+        send(exchange, 412, "the node has changed");
+        return false;
+    }
+
+    private void addClient(DeviceNode node, EventStream.Client client) {
+        synchronized (streams) {
+            EventStream s = streams.get(node);
+            if (s == null) {
+                s = new EventStream(node);
+                node.getChangeSupport().addPropertyChangeListener(s);
+                streams.put(node, s);
+            }
+            client.stream = s;
+            s.clients.add(client);
+        }
+        subscribers.incrementAndGet();
+    }
+
+    // the node's listener goes with its last client
+    void removeClient(EventStream.Client client) {
+        synchronized (streams) {
+            EventStream s = client.stream;
+            if (s == null || !s.clients.remove(client)) {
+                return;
+            }
+            if (s.clients.isEmpty()) {
+                streams.remove(s.node);
+                s.node.getChangeSupport().removePropertyChangeListener(s);
+                EventDispatcher dispatcher = s.node.getEventDispatcher();
+                if (dispatcher instanceof AsyncEventDispatcher) {
+                    ((AsyncEventDispatcher) dispatcher).release(s);
+                }
+            }
+        }
+        subscribers.decrementAndGet();
+    }
+
+    private List<EventStream.Client> allClients() {
+        List<EventStream.Client> all = new ArrayList<>();
+        synchronized (streams) {
+            for (EventStream s : streams.values()) {
+                all.addAll(s.clients);
+            }
+        }
+        return all;
+    }
+
+    // what gson throws for malformed JSON (MalformedJsonException is an
+    // IOException), for a document of the wrong shape, and for a bad number
+    private static void badDocument(HttpExchange exchange, Exception ex) throws IOException {
+        send(exchange, 400, "bad document: " + ex.getMessage());
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        if (exchange.getResponseCode() >= 0) {
+            // too late for a status; all we can do is end the response
+            exchange.close();
+            return;
+        }
+        byte[] body = text.getBytes(UTF8);
+        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // whether an If-None-Match or If-Match header lists the tag, weak or
+    // not, or is "*"
+    static boolean matches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (String t : header.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals("*") || t.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasParameter(URI uri, String name) {
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return false;
+        }
+        for (String p : query.split("&")) {
+            if (p.equals(name) || p.startsWith(name + "=") && !p.equals(name + "=false")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-server-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package devicemodel.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import devicemodel.DeviceNode;
+import devicemodel.conversions.JsonConversions;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The server-sent events of one node for DeviceServer. One listener on the
+ * node turns each change event into text once, and that text is handed to
+ * every client streaming the node. Every client has its own queue, written
+ * to its socket by at most one executor task at a time, so a slow client
+ * holds up no one else; one that falls more than MAX_BACKLOG events behind
+ * is disconnected (an EventSource reconnects by itself and starts over from
+ * the current state).
+ *
+ * A client that stops reading fills its socket's buffers, and the write to
+ * it then blocks one of the writing threads. Such a write is broken off by
+ * interrupting the thread, which closes the socket under it: when the
+ * client overflows, and when DeviceServer's watchdog finds a write that took
+ * longer than the server's write timeout.
+ *
+ * @author root
+ */
+final class EventStream implements PropertyChangeListener {
+
+    static final int MAX_BACKLOG = 256;
+    // events written per executor task before yielding to other clients
+    private static final int DRAIN_BATCH = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final DeviceNode node;
+    final Set<Client> clients = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+
+    EventStream(DeviceNode node) {
+        this.node = node;
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        byte[] event = event("change", JsonConversions.nodeToJson((DeviceNode) evt.getNewValue()));
+        for (Client c : clients) {
+            c.offer(event);
+        }
+    }
+
+    // "event: name" and one data line; the JSON written by JsonConversions
+    // has no line breaks
+    static byte[] event(String name, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + name.length() + 16);
+        sb.append("event: ").append(name).append('\n');
+        sb.append("data: ").append(data).append("\n\n");
+        return sb.toString().getBytes(UTF8);
+    }
+
+    // one open event stream
+    static final class Client implements Runnable {
+
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final Executor executor;
+        private final DeviceServer server;
+        // set by DeviceServer when it adds the client
+        EventStream stream;
+        // guarded by this
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean started = false;
+        private boolean scheduled = false;
+        private boolean closed = false;
+        private boolean finished = false;
+        // the thread writing to the socket and since when, or null
+        private Thread writer;
+        private long writingSince;
+
+        Client(HttpExchange exchange, Executor executor, DeviceServer server) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.executor = executor;
+            this.server = server;
+        }
+
+        void offer(byte[] event) {
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (queue.size() >= MAX_BACKLOG) {
+                    Logger.getLogger(EventStream.class.getName()).log(Level.WARNING, "event stream of {0} fell behind; disconnecting", exchange.getRemoteAddress());
+                    abort();
+                    // the writing task, or one scheduled now, closes the exchange
+                    schedule = !scheduled;
+                } else {
+                    queue.add(event);
+                    schedule = started && !scheduled;
+                }
+                scheduled |= schedule;
+            }
+            if (schedule) {
+                submit();
+            }
+        }
+
+        // start writing, with the node's state ahead of the changes that
+        // came in since the client was added
+        void start(byte[] state) {
+            boolean schedule;
+            synchronized (this) {
+                queue.addFirst(state);
+                started = true;
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                submit();
+            }
+        }
+
+        // end the stream; the exchange is closed by the writing task, which
+        // may be blocked on the socket right now
+        void close() {
+            boolean schedule;
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                submit();
+            }
+        }
+
+        // disconnect if a write has taken since before deadline (a
+        // System.nanoTime()); called by DeviceServer's watchdog
+        synchronized void checkWrite(long deadline) {
+            if (writer != null && !closed && writingSince - deadline < 0) {
+                Logger.getLogger(EventStream.class.getName()).log(Level.WARNING, "event stream of {0} stopped reading; disconnecting", exchange.getRemoteAddress());
+                abort();
+            }
+        }
+
+        // stop taking events, and break off a write that is in progress.
+        // Blocking socket writes of the JDK's server go through a channel,
+        // which an interrupt closes, failing the write
+        private void abort() {
+            assert Thread.holdsLock(this);
+            closed = true;
+            queue.clear();
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // the server is going down
+                synchronized (this) {
+                    closed = true;
+                }
+                finish();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                writer = Thread.currentThread();
+                writingSince = System.nanoTime();
+            }
+            try {
+                for (int written = 0; written < DRAIN_BATCH; written++) {
+                    byte[] event;
+                    synchronized (this) {
+                        event = closed ? null : queue.poll();
+                    }
+                    if (event == null) {
+                        break;
+                    }
+                    out.write(event);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                // the client went away, or the write was broken off
+                synchronized (this) {
+                    closed = true;
+                }
+            } finally {
+                synchronized (this) {
+                    writer = null;
+                }
+                // an abort may have come after the write was done; the
+                // thread goes back to the pool without it
+                Thread.interrupted();
+            }
+
+            // only now, with everything flushed, may another task start
+            boolean done;
+            boolean more;
+            synchronized (this) {
+                done = closed;
+                more = !closed && !queue.isEmpty();
+                scheduled = more;
+            }
+            if (done) {
+                finish();
+            } else if (more) {
+                // go to the back of the executor's line
+                submit();
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                queue.clear();
+            }
+            server.removeClient(this);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import devicemodel.DeviceNode;
+import devicemodel.FragmentCache;
+import devicemodel.conversions.BinaryConversions;
+import devicemodel.conversions.JsonConversions;
+import devicemodel.conversions.XmlConversions;
+import devicemodel.conversions.XmlStreamConversions;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro-benchmarks for the tree, event and conversion hot paths, run on a
+ * synthetic tree of configurable width and depth:
+ *
+ *   java -cp ... testing.Benchmarks [width] [depth] [seconds per benchmark]
+ *
+ * Every benchmark is warmed up first and then run for the given time. For
+ * each one the time and heap allocated per operation (from the thread's
+ * allocation counter) and the collections it caused are printed, so runs
+ * can be compared between versions and used to size deployments.
+ *
+ * @author root
+ */
+public class Benchmarks {
+
+    private static final com.sun.management.ThreadMXBean THREADS
+            = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final long WARMUP_NANOS = 1000000000L;
+
+    // keeps results alive so the JIT can't drop the work
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long nanos = (args.length > 2 ? Long.parseLong(args[2]) : 3) * 1000000000L;
+
+        final DeviceNode tree = buildTree(width, depth);
+        final String[] leaves = leafPaths(tree);
+        System.out.println("tree width " + width + ", depth " + depth + ": "
+                + (tree.getAllChildren().size() + 1) + " nodes, " + leaves.length + " leaves");
+        System.out.printf("%-28s %14s %12s %12s %6s %8s%n", "benchmark", "ops/s", "ns/op", "bytes/op", "gcs", "gc ms");
+
+        final DeviceNode parent = tree.getChild("n0");
+        final DeviceNode[] fresh = new DeviceNode[1024];
+        for (int i = 0; i < fresh.length; i++) {
+            fresh[i] = new DeviceNode("extra" + i);
+        }
+        run("addChild+removeChild", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) throws Exception {
+                DeviceNode n = fresh[i & 1023];
+                parent.addChild(n);
+                parent.removeChild(n);
+            }
+        });
+
+        run("getChildByPath", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = tree.getChildByPath(leaves[i % leaves.length]);
+            }
+        });
+
+        for (final int listeners : new int[]{0, 1, 10}) {
+            final DeviceNode t = buildTree(width, depth);
+            final DeviceNode leaf = t.getChildByPath(leaves[leaves.length / 2]);
+            for (int l = 0; l < listeners; l++) {
+                leaf.getChangeSupport().addPropertyChangeListener(new Counter());
+                t.getChangeSupport().addPropertyChangeListener(new Counter());
+            }
+            run("update(long), " + listeners + " listeners", nanos, new Benchmark() {
+
+                @Override
+                void op(int i) {
+                    leaf.update((long) i);
+                }
+            });
+            final DeviceNode incoming = new DeviceNode(leaf.getName());
+            run("update(node), " + listeners + " listeners", nanos, new Benchmark() {
+
+                @Override
+                void op(int i) {
+                    incoming.setValue((long) i);
+                    leaf.update(incoming);
+                }
+            });
+        }
+
+        // a poller pushing the full state when nothing changed. The copies
+        // keep their hashes after the first round, so this leaves out
+        // hashing the incoming tree, which jsonToNode etc. cost anyway
+        final DeviceNode[] copies = new DeviceNode[16];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = tree.cloneDeep();
+        }
+        run("update(tree), unchanged", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                tree.update(copies[i & 15]);
+            }
+        });
+
+        run("get() deep copy", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = tree.get();
+            }
+        });
+
+        final String json = JsonConversions.nodeToJson(tree);
+        run("nodeToJson", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = JsonConversions.nodeToJson(tree);
+            }
+        });
+        // the same with a fragment cache and one leaf changing in between
+        final DeviceNode cached = buildTree(width, depth);
+        final DeviceNode changing = cached.getChildByPath(leaves[0]);
+        cached.setFragmentCache(new FragmentCache(64L << 20));
+        run("nodeToJson, fragment cache", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                changing.update((long) i);
+                sink = JsonConversions.nodeToJson(cached);
+            }
+        });
+        run("jsonToNode", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = JsonConversions.jsonToNode(json);
+            }
+        });
+
+        final String xml = XmlConversions.nodeToXmlString(tree);
+        run("nodeToXmlString", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) throws Exception {
+                sink = XmlConversions.nodeToXmlString(tree);
+            }
+        });
+        // what xmlToNode(File) runs
+        run("xmlToNode", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) throws Exception {
+                sink = XmlStreamConversions.readXml(new StringReader(xml));
+            }
+        });
+        // the same tree from a template: one "n" element repeated per id
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            ids.append(i == 0 ? "" : ",").append(i);
+        }
+        final String templated = "<root ids=\"" + ids + "\">"
+                + XmlConversions.nodeToXmlString(buildTree(width, depth - 1).cloneDeep("n")) + "</root>";
+        run("xmlToNode, ids template", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) throws Exception {
+                sink = XmlStreamConversions.readXml(new StringReader(templated));
+            }
+        });
+
+        final byte[] binary = BinaryConversions.nodeToBytes(tree);
+        run("nodeToBytes", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = BinaryConversions.nodeToBytes(tree);
+            }
+        });
+        run("bytesToNode", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) throws Exception {
+                sink = BinaryConversions.bytesToNode(binary);
+            }
+        });
+
+        // one leaf in a hundred raises an alarm
+        final DeviceNode alarms = buildTree(width, depth);
+        for (int i = 0; i < leaves.length; i += 100) {
+            alarms.getChildByPath(leaves[i]).addAttribute("severity", "critical");
+        }
+        run("query, full scan", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                List<DeviceNode> found = new ArrayList<>();
+                for (DeviceNode n : alarms.getAllChildren().values()) {
+                    if ("critical".equals(n.getAttribute("severity"))) {
+                        found.add(n);
+                    }
+                }
+                sink = found;
+            }
+        });
+        run("query, walk", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = alarms.query("/**").attribute("severity", "critical").list();
+            }
+        });
+        alarms.createIndex("severity");
+        run("query, indexed", nanos, new Benchmark() {
+
+            @Override
+            void op(int i) {
+                sink = alarms.query("/**").attribute("severity", "critical").list();
+            }
+        });
+    }
+
+    // width children per node down to depth levels; the leaves hold typed
+    // values and an attribute, like sensor readings do
+    public static DeviceNode buildTree(int width, int depth) {
+        DeviceNode root = new DeviceNode("root");
+        fill(root, width, depth);
+        return root;
+    }
+
+    private static void fill(DeviceNode node, int width, int depth) {
+        if (depth == 0) {
+            node.addAttribute("units", "C");
+            node.setValue((long) node.getName().hashCode());
+            return;
+        }
+        for (int i = 0; i < width; i++) {
+            fill(new DeviceNode("n" + i, node), width, depth - 1);
+        }
+    }
+
+    public static String[] leafPaths(DeviceNode tree) {
+        List<String> paths = new ArrayList<>();
+        for (String path : tree.getAllChildren().keySet()) {
+            if (tree.getChildByPath(path).getChildren().isEmpty()) {
+                paths.add(path);
+            }
+        }
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    private static void run(String name, long nanos, Benchmark b) throws Exception {
+        // warm up, then measure for the given time
+        measure(b, WARMUP_NANOS);
+        long gcs = gcCount();
+        long gcMillis = gcTime();
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long ops = measure(b, nanos);
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("%-28s %14.0f %12.1f %12.1f %6d %8d%n", name,
+                ops * 1e9 / elapsed, (double) elapsed / ops, (double) allocated / ops,
+                gcCount() - gcs, gcTime() - gcMillis);
+    }
+
+    // runs op() in rounds until the time is up; returns how many it ran
+    private static long measure(Benchmark b, long nanos) throws Exception {
+        long end = System.nanoTime() + nanos;
+        long ops = 0;
+        int round = 1;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < round; i++) {
+                b.op((int) ops++);
+            }
+            if (round < 1024) {
+                round *= 2;
+            }
+        }
+        return ops;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(gc.getCollectionCount(), 0);
+        }
+        return n;
+    }
+
+    private static long gcTime() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(gc.getCollectionTime(), 0);
+        }
+        return n;
+    }
+
+    private static abstract class Benchmark {
+
+        abstract void op(int i) throws Exception;
+    }
+
+    private static class Counter implements PropertyChangeListener {
+
+        int events;
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            events++;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import devicemodel.DeviceNode;
+import devicemodel.conversions.BinaryConversions;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks BinaryConversions on a tree of its own, needing no files:
+ *
+ *   java -cp ... testing.BinaryRoundTrip
+ *
+ * The tree holds every value type, with edge values, along with attributes
+ * and names in several scripts. It has to come back node for node, type for
+ * type, from both bytesToNode() and readBinary(InputStream). Empty,
+ * truncated and corrupted input has to be turned down with an IOException
+ * and nothing else. Prints what differs and exits with 1 if anything does.
+ *
+ * @author root
+ */
+public class BinaryRoundTrip {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        DeviceNode tree = buildTree();
+        byte[] bytes = BinaryConversions.nodeToBytes(tree);
+
+        compare("bytesToNode", tree, BinaryConversions.bytesToNode(bytes));
+        compare("readBinary(InputStream)", tree, BinaryConversions.readBinary(new ByteArrayInputStream(bytes)));
+        // written again, it comes out byte for byte the same
+        check("second round trip", Arrays.equals(bytes, BinaryConversions.nodeToBytes(BinaryConversions.bytesToNode(bytes))));
+
+        rejects("empty input", new byte[0]);
+        rejects("bad magic", new byte[]{'X', 'M', 'B', 1, 0});
+        // a string table claiming 2^28 strings, with nothing after it
+        rejects("huge string count", new byte[]{'D', 'M', 'B', 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1});
+        for (int n = 0; n < bytes.length; n++) {
+            rejects("truncated to " + n + " bytes", Arrays.copyOf(bytes, n));
+        }
+        // random damage may still make a tree, but may only fail as above
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            byte[] damaged = bytes.clone();
+            for (int k = 1 + random.nextInt(4); k > 0; k--) {
+                damaged[random.nextInt(damaged.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                BinaryConversions.bytesToNode(damaged);
+            } catch (IOException ex) {
+                // turned down
+            } catch (RuntimeException | Error ex) {
+                fail("damaged input " + i + " threw " + ex);
+            }
+        }
+
+        System.out.println(failures == 0 ? "binary round trip ok, " + bytes.length + " bytes" : failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static DeviceNode buildTree() {
+        DeviceNode root = new DeviceNode("Chassis");
+        root.addAttribute("model", "7800");
+        root.addAttribute("site", "Z\u00fcrich \u2013 Halle 3");
+
+        DeviceNode values = new DeviceNode("Values", root);
+        new DeviceNode("text", values).setValue("hello");
+        new DeviceNode("empty", values).setValue("");
+        new DeviceNode("none", values).setValue((String) null);
+        new DeviceNode("zero", values).setValue(0L);
+        new DeviceNode("negative", values).setValue(-1L);
+        new DeviceNode("minLong", values).setValue(Long.MIN_VALUE);
+        new DeviceNode("maxLong", values).setValue(Long.MAX_VALUE);
+        new DeviceNode("pi", values).setValue(Math.PI);
+        new DeviceNode("negativeZero", values).setValue(-0.0);
+        new DeviceNode("notANumber", values).setValue(Double.NaN);
+        new DeviceNode("infinity", values).setValue(Double.NEGATIVE_INFINITY);
+        new DeviceNode("on", values).setValue(true);
+        new DeviceNode("off", values).setValue(false);
+
+        DeviceNode unicode = new DeviceNode("Unicode", root);
+        DeviceNode greek = new DeviceNode("\u03a9\u03bc\u03ad\u03b3\u03b1", unicode);
+        greek.setValue("\u6e29\u5ea6 \ud83d\ude00");
+        greek.addAttribute("\u55ae\u4f4d", "\u00b0C");
+        new DeviceNode("emoji\ud83d\ude00", unicode).setValue("\u0000 and \uffff");
+
+        // wide and deep, with the same strings over and over
+        DeviceNode cards = new DeviceNode("Cards", root);
+        for (int c = 0; c < 20; c++) {
+            DeviceNode card = new DeviceNode("Card" + c, cards);
+            card.addAttribute("state", c % 3 == 0 ? "fault" : "ok");
+            DeviceNode n = card;
+            for (int d = 0; d < 8; d++) {
+                n = new DeviceNode("Port" + d, n);
+                n.setValue((long) c * d);
+            }
+        }
+        return root;
+    }
+
+    // name, value type, value, attributes and children, all the way down
+    private static void compare(String what, DeviceNode expected, DeviceNode actual) {
+        if (actual == null) {
+            fail(what + ": missing " + expected.getNodePath());
+            return;
+        }
+        String path = what + ": " + expected.getNodePath();
+        check(path + " name", expected.getName().equals(actual.getName()));
+        check(path + " value type " + expected.getValueType() + " came back as " + actual.getValueType(),
+                expected.getValueType() == actual.getValueType());
+        check(path + " value " + expected.getValue() + " came back as " + actual.getValue(),
+                expected.getValue() == null ? actual.getValue() == null : expected.getValue().equals(actual.getValue()));
+        check(path + " attributes", expected.getAttributes().equals(actual.getAttributes()));
+        check(path + " child count", expected.getChildren().size() == actual.getChildren().size());
+        for (Map.Entry<String, DeviceNode> e : expected.getChildren().entrySet()) {
+            compare(what, e.getValue(), actual.getChild(e.getKey()));
+        }
+    }
+
+    private static void rejects(String what, byte[] data) {
+        try {
+            BinaryConversions.bytesToNode(data);
+            fail(what + " was read");
+        } catch (IOException ex) {
+            // as it should be
+        } catch (RuntimeException | Error ex) {
+            fail(what + " threw " + ex);
+        }
+    }
+
+    private static void check(String what, boolean ok) {
+        if (!ok) {
+            fail(what);
+        }
+    }
+
+    private static void fail(String what) {
+        failures++;
+        System.out.println("FAILED: " + what);
+    }
+}
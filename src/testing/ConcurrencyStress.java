@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import devicemodel.DeviceNode;
+import devicemodel.EventDispatcher;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test for the concurrency model described in TreeContext: writer
+ * threads each update their own device subtree, with 1, 2, 4 ... up to the
+ * given number of writers, and the throughput of each step is compared
+ * with the single-writer one. Disjoint writers share nothing, so on a
+ * machine with at least that many cores the scaling should be close to
+ * linear. The scaling column only says something for steps with no more
+ * writers than available processors: with fewer cores (or in a container
+ * limited to one CPU) the writers just take turns, and the numbers show the
+ * cost of switching between them, not how the tree scales.
+ *
+ *   java -cp ... testing.ConcurrencyStress [max writers] [seconds per step] [snapshots]
+ *
+ * Meanwhile a checker thread reads a node whose value another thread keeps
+ * switching between long and double values, and fails the run if it ever
+ * sees a torn value. At the end every leaf must hold the last value its
+ * writer gave it. Pass "snapshots" to also publish a snapshot on every
+ * write, which serializes publication and so doesn't scale.
+ *
+ * @author root
+ */
+public class ConcurrencyStress {
+
+    private static final int LEAVES = 16;
+
+    public static void main(String[] args) throws Exception {
+        int maxWriters = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long nanos = (args.length > 1 ? Long.parseLong(args[1]) : 2) * 1000000000L;
+        boolean snapshots = args.length > 2 && args[2].equals("snapshots");
+
+        DeviceNode root = new DeviceNode("root");
+        for (int d = 0; d < maxWriters; d++) {
+            DeviceNode device = new DeviceNode("dev" + d, root);
+            for (int l = 0; l < LEAVES; l++) {
+                new DeviceNode("s" + l, device).setValue(0L);
+            }
+        }
+        final DeviceNode flipping = new DeviceNode("flip", root);
+        // gives the tree its context, and with it the tree lock
+        root.setEventDispatcher(EventDispatcher.SYNCHRONOUS);
+        if (snapshots) {
+            root.snapshot();
+        }
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors()
+                + (snapshots ? ", publishing snapshots" : ""));
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            System.out.println("only one processor: the scaling column shows nothing about scaling");
+        }
+        System.out.printf("%8s %14s %14s %10s%n", "writers", "updates/s", "per writer", "scaling");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong torn = new AtomicLong();
+        Thread flipper = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long k = 0;
+                while (running.get()) {
+                    flipping.update(k);
+                    flipping.update(k + 0.5);
+                    k++;
+                }
+            }
+        }, "flipper");
+        Thread checker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running.get()) {
+                    // a whole value is k or k + 0.5; anything else was torn
+                    double d = Double.parseDouble(flipping.getValue());
+                    double frac = d - Math.floor(d);
+                    if (Math.abs(d) > 1e12 || (frac != 0 && frac != 0.5)) {
+                        torn.incrementAndGet();
+                    }
+                }
+            }
+        }, "checker");
+        flipper.setDaemon(true);
+        checker.setDaemon(true);
+        flipper.start();
+        checker.start();
+
+        double single = 0;
+        long[] last = new long[maxWriters];
+        for (int writers = 1; writers <= maxWriters; writers *= 2) {
+            double rate = step(root, writers, nanos, last);
+            if (writers == 1) {
+                single = rate;
+            }
+            System.out.printf("%8d %14.0f %14.0f %9.2fx%n", writers, rate, rate / writers, rate / single);
+            if (writers < maxWriters && writers * 2 > maxWriters) {
+                writers = maxWriters / 2;
+            }
+        }
+        running.set(false);
+        flipper.join();
+        checker.join();
+
+        int wrong = 0;
+        for (int d = 0; d < maxWriters; d++) {
+            for (int l = 0; l < LEAVES; l++) {
+                // the last value the writer of device d gave leaf l is the
+                // largest one up to last[d] with v % LEAVES == l, if any
+                long expected = last[d] - (last[d] - l) % LEAVES;
+                if (expected <= 0) {
+                    expected = 0;
+                }
+                if (root.getChildByPath("/dev" + d + "/s" + l).getLongValue() != expected) {
+                    wrong++;
+                }
+            }
+        }
+        System.out.println("torn reads: " + torn.get() + ", leaves with a wrong final value: " + wrong);
+        if (torn.get() > 0 || wrong > 0) {
+            System.exit(1);
+        }
+    }
+
+    // run the writers for the given time; returns updates per second
+    private static double step(final DeviceNode root, int writers, final long nanos, final long[] last) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] counts = new long[writers];
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int id = w;
+            threads[w] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    DeviceNode[] leaves = new DeviceNode[LEAVES];
+                    for (int l = 0; l < LEAVES; l++) {
+                        leaves[l] = root.getChildByPath("/dev" + id + "/s" + l);
+                    }
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    // values keep growing across steps, so every update
+                    // is a change; leaf l only ever gets values v with
+                    // v % LEAVES == l
+                    long v = last[id];
+                    long n = 0;
+                    long end = System.nanoTime() + nanos;
+                    while ((n & 255) != 0 || System.nanoTime() < end) {
+                        v++;
+                        leaves[(int) (v % LEAVES)].update(v);
+                        n++;
+                    }
+                    last[id] = v;
+                    counts[id] = n;
+                }
+            }, "writer-" + w);
+            threads[w].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total * 1e9 / elapsed;
+    }
+}
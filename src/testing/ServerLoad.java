@@ -0,0 +1,265 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import devicemodel.DeviceNode;
+import devicemodel.server.DeviceServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for DeviceServer's event streams: opens the given number of
+ * server-sent event streams on one node, all from a single selector thread,
+ * and then changes the node's value.
+ *
+ *   java -cp ... testing.ServerLoad [subscribers] [events] [stalled]
+ *
+ * First every change waits until all subscribers have it, which gives the
+ * time one change takes to reach all of them; then a burst of changes is
+ * sent at once, which gives the deliveries per second. Last, a burst of
+ * large changes goes to another node streamed by a few clients that read
+ * and some that never do; the ones that read must get it all while the
+ * others are disconnected. The server and the
+ * clients run in the same process, so on a small machine the clients take
+ * a good share of the time. The process needs two file descriptors per
+ * subscriber.
+ *
+ * @author root
+ */
+public class ServerLoad {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // changes in the burst; stays below EventStream's backlog limit
+    private static final int BURST = 200;
+    // clients that read in the last test, and its value size
+    private static final int READERS = 20;
+    private static final int LARGE = 16 * 1024;
+
+    // data lines received over all streams
+    static final AtomicLong received = new AtomicLong();
+    static final Object progress = new Object();
+    // channels connected after the selector thread started, with their Stream
+    static final Queue<Object[]> pending = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int stalled = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        DeviceNode root = new DeviceNode("Chassis");
+        DeviceNode sensor = new DeviceNode("Sensor", root);
+        sensor.setValue(0L);
+        DeviceNode log = new DeviceNode("Log", root);
+        log.setValue("");
+        DeviceServer server = new DeviceServer(root, new InetSocketAddress("127.0.0.1", 0), null);
+        // short, so the stalled clients of the last test are found quickly
+        server.setWriteTimeout(1000);
+        server.start();
+        InetSocketAddress address = server.getAddress();
+        int threadsBefore = Thread.activeCount();
+
+        // connect them all
+        long start = System.nanoTime();
+        final Selector selector = Selector.open();
+        for (int i = 0; i < subscribers; i++) {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.connect(address);
+            ch.register(selector, SelectionKey.OP_CONNECT, new Stream("/Sensor", false));
+        }
+        Thread clients = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    poll(selector);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, "load-clients");
+        clients.setDaemon(true);
+        clients.start();
+
+        // the first event of every stream is the node's state
+        await(subscribers);
+        System.out.printf("%d subscribers connected in %d ms; %d on the server, %d more threads%n",
+                subscribers, (System.nanoTime() - start) / 1000000, server.getSubscriberCount(),
+                Thread.activeCount() - threadsBefore);
+
+        // one change at a time
+        long[] fanOut = new long[events];
+        long target = subscribers;
+        for (int k = 0; k < events; k++) {
+            target += subscribers;
+            long t = System.nanoTime();
+            sensor.update((long) k + 1);
+            await(target);
+            fanOut[k] = System.nanoTime() - t;
+        }
+        Arrays.sort(fanOut);
+        System.out.printf("one change to all: median %.2f ms, 99%% %.2f ms, max %.2f ms%n",
+                fanOut[events / 2] / 1e6, fanOut[events * 99 / 100] / 1e6, fanOut[events - 1] / 1e6);
+
+        // a burst
+        target += (long) BURST * subscribers;
+        long t = System.nanoTime();
+        for (int k = 0; k < BURST; k++) {
+            sensor.update((long) events + k + 1);
+        }
+        await(target);
+        double seconds = (System.nanoTime() - t) / 1e9;
+        System.out.printf("burst of %d changes: %.0f ms, %.0f deliveries/s%n",
+                BURST, seconds * 1000, BURST * (double) subscribers / seconds);
+
+        // clients that stop reading, with a small window so their socket
+        // buffers fill quickly; they must not hold up the others
+        target += READERS;
+        for (int i = 0; i < READERS + stalled; i++) {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            boolean stalls = i >= READERS;
+            if (stalls) {
+                ch.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+            }
+            ch.connect(address);
+            pending.add(new Object[]{ch, new Stream("/Log", stalls)});
+        }
+        selector.wakeup();
+        await(target);
+        while (server.getSubscriberCount() < subscribers + READERS + stalled) {
+            Thread.sleep(10);
+        }
+        char[] large = new char[LARGE];
+        DeviceNode change = new DeviceNode("Log");
+        target += (long) BURST * READERS;
+        t = System.nanoTime();
+        for (int k = 0; k < BURST; k++) {
+            Arrays.fill(large, (char) ('a' + k % 26));
+            change.setValue(new String(large));
+            log.update(change);
+        }
+        await(target);
+        long delivered = System.nanoTime() - t;
+        while (server.getSubscriberCount() > subscribers + READERS) {
+            Thread.sleep(10);
+        }
+        System.out.printf("%d stalled clients: %d large changes to %d readers in %d ms, all stalled ones disconnected after %d ms%n",
+                stalled, BURST, READERS, delivered / 1000000, (System.nanoTime() - t) / 1000000);
+
+        server.stop();
+        System.exit(0);
+    }
+
+    static void await(long target) throws InterruptedException {
+        synchronized (progress) {
+            while (received.get() < target) {
+                progress.wait(10);
+            }
+        }
+    }
+
+    static void poll(Selector selector) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (;;) {
+            selector.select();
+            for (Object[] p = pending.poll(); p != null; p = pending.poll()) {
+                ((SocketChannel) p[0]).register(selector, SelectionKey.OP_CONNECT, p[1]);
+            }
+            long before = received.get();
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+                SocketChannel ch = (SocketChannel) key.channel();
+                if (key.isConnectable()) {
+                    ch.finishConnect();
+                    Stream s = (Stream) key.attachment();
+                    // small enough to go out in one write
+                    ch.write(ByteBuffer.wrap(s.request));
+                    key.interestOps(s.stalls ? 0 : SelectionKey.OP_READ);
+                } else if (key.isReadable()) {
+                    buf.clear();
+                    if (ch.read(buf) < 0) {
+                        key.cancel();
+                        ch.close();
+                        continue;
+                    }
+                    buf.flip();
+                    ((Stream) key.attachment()).read(buf);
+                }
+            }
+            if (received.get() != before) {
+                synchronized (progress) {
+                    progress.notifyAll();
+                }
+            }
+        }
+    }
+
+    // undoes the chunked transfer coding and counts the events' data lines
+    static final class Stream {
+
+        private static final byte[] DATA = "\ndata:".getBytes(ASCII);
+        final byte[] request;
+        // never reads what the server sends
+        final boolean stalls;
+        private boolean headers = true;
+        // the last bytes of the headers seen, to find the empty line
+        private int tail = 0;
+        // bytes left in the current chunk; -1 while reading a chunk size,
+        // -2 while skipping the CRLF after a chunk
+        private int chunk = -1;
+        private int size = 0;
+        private int matched = 0;
+
+        Stream(String path, boolean stalls) {
+            this.request = ("GET " + path + " HTTP/1.1\r\nHost: load\r\nAccept: text/event-stream\r\n\r\n").getBytes(ASCII);
+            this.stalls = stalls;
+        }
+
+        void read(ByteBuffer buf) {
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (headers) {
+                    tail = tail << 8 | b & 0xff;
+                    headers = tail != 0x0d0a0d0a;
+                } else if (chunk == -1) {
+                    if (b == '\n') {
+                        chunk = size;
+                        size = 0;
+                    } else if (b != '\r') {
+                        size = size * 16 + Character.digit(b, 16);
+                    }
+                } else if (chunk == -2) {
+                    if (b == '\n') {
+                        chunk = -1;
+                    }
+                } else {
+                    if (--chunk == 0) {
+                        chunk = -2;
+                    }
+                    matched = b == DATA[matched] ? matched + 1 : b == DATA[0] ? 1 : 0;
+                    if (matched == DATA.length) {
+                        matched = 0;
+                        received.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import devicemodel.DeviceNode;
+import devicemodel.NodeHandler;
+import devicemodel.conversions.BinaryConversions;
+import devicemodel.persistence.DeviceStore;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Checks that DeviceStore brings back the tree it was given, in a directory
+ * of its own under java.io.tmpdir:
+ *
+ *   java -cp ... testing.StoreCheck
+ *
+ * It reloads after a checkpoint with more writes on top of it, after the last
+ * log record has been cut short or had a byte flipped (the tree has to come
+ * back as it was before that record), and after an update handler turned a
+ * value down (the vetoed value must not come back). Prints what differs and
+ * exits with 1 if anything does.
+ *
+ * @author root
+ */
+public class StoreCheck {
+
+    // small, so the logs grow their mapping during the run as well
+    private static final int SEGMENT = 4096;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        File base = Files.createTempDirectory("storecheck").toFile();
+        try {
+            checkpointThenWrites(new File(base, "checkpoint"));
+            damagedTail(new File(base, "torn"), true);
+            damagedTail(new File(base, "crc"), false);
+            vetoed(new File(base, "veto"));
+        } finally {
+            delete(base);
+        }
+
+        System.out.println(failures == 0 ? "store reloads ok" : failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void checkpointThenWrites(File dir) throws IOException {
+        DeviceNode root = buildTree();
+        DeviceStore store = new DeviceStore(dir, SEGMENT);
+        store.attach(root);
+        change(root, 0);
+        store.checkpoint();
+        change(root, 1);
+        store.close();
+        compare("checkpoint then writes", root, new DeviceStore(dir, SEGMENT).load());
+
+        // a loaded tree carries on logging into the same directory
+        store = new DeviceStore(dir, SEGMENT);
+        DeviceNode loaded = store.load();
+        store.attach(loaded);
+        change(loaded, 2);
+        store.checkpoint();
+        change(loaded, 3);
+        store.close();
+        compare("reload, writes, checkpoint, writes", loaded, new DeviceStore(dir, SEGMENT).load());
+    }
+
+    // the last record is lost, so the tree comes back as it was before it
+    private static void damagedTail(File dir, boolean truncate) throws IOException {
+        String what = truncate ? "torn tail record" : "CRC-bad tail record";
+        DeviceNode root = buildTree();
+        DeviceStore store = new DeviceStore(dir, SEGMENT);
+        store.attach(root);
+        change(root, 0);
+        DeviceNode before = BinaryConversions.bytesToNode(BinaryConversions.nodeToBytes(root));
+        root.getChildByPath("/Cards/Card1/Port0").update(value("Port0", 999L));
+        store.close();
+
+        File log = newestLog(dir);
+        try (RandomAccessFile f = new RandomAccessFile(log, "rw")) {
+            // records are a length, a CRC32 and the payload; zeros follow
+            long last = -1;
+            int lastLength = 0;
+            long at = 0;
+            while (at + 8 <= f.length()) {
+                f.seek(at);
+                int length = f.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                last = at;
+                lastLength = length;
+                at += 8 + length;
+            }
+            if (last < 0) {
+                fail(what + ": nothing logged in " + log);
+                return;
+            }
+            if (truncate) {
+                f.setLength(last + 8 + lastLength / 2);
+            } else {
+                long p = last + 8 + lastLength - 1;
+                f.seek(p);
+                int b = f.read();
+                f.seek(p);
+                f.write(b ^ 0x40);
+            }
+        }
+        compare(what, before, new DeviceStore(dir, SEGMENT).load());
+    }
+
+    private static void vetoed(File dir) throws IOException {
+        DeviceNode root = buildTree();
+        DeviceNode mode = root.getChildByPath("/Config/Mode");
+        mode.setUpdateHandle(new NodeHandler() {
+
+            @Override
+            public boolean handle(DeviceNode node) {
+                return !"bad".equals(node.getValue());
+            }
+        });
+        DeviceStore store = new DeviceStore(dir, SEGMENT);
+        store.attach(root);
+
+        DeviceNode update = new DeviceNode("Config");
+        new DeviceNode("Mode", update).setValue("bad");
+        new DeviceNode("Name", update).setValue("renamed");
+        root.getChild("Config").update(update);
+        check("veto: live Mode kept its value", "auto".equals(mode.getValue()));
+        check("veto: live Name took the update", "renamed".equals(root.getChildByPath("/Config/Name").getValue()));
+        store.close();
+        compare("reload after veto", root, new DeviceStore(dir, SEGMENT).load());
+    }
+
+    private static DeviceNode buildTree() {
+        DeviceNode root = new DeviceNode("Chassis");
+        root.addAttribute("model", "7800");
+        DeviceNode config = new DeviceNode("Config", root);
+        new DeviceNode("Mode", config).setValue("auto");
+        new DeviceNode("Name", config).setValue("chassis-1");
+        DeviceNode cards = new DeviceNode("Cards", root);
+        for (int c = 0; c < 8; c++) {
+            DeviceNode card = new DeviceNode("Card" + c, cards);
+            card.addAttribute("state", "ok");
+            for (int p = 0; p < 4; p++) {
+                new DeviceNode("Port" + p, card).setValue((long) c * p);
+            }
+        }
+        return root;
+    }
+
+    // updates, an added card and a removed one, different for each round
+    private static void change(DeviceNode root, int round) {
+        DeviceNode cards = root.getChild("Cards");
+        for (int c = 0; c < 4; c++) {
+            DeviceNode card = cards.getChild("Card" + c);
+            if (card != null) {
+                card.getChild("Port1").update(value("Port1", round * 100L + c));
+            }
+        }
+        DeviceNode added = new DeviceNode("Spare" + round);
+        added.addAttribute("state", "new");
+        new DeviceNode("Port0", added).setValue(round + 0.5);
+        try {
+            cards.addChild(added);
+        } catch (Exception ex) {
+            fail("round " + round + ": adding " + added.getName() + " threw " + ex);
+        }
+        cards.removeChild("Card" + (7 - round));
+    }
+
+    private static DeviceNode value(String name, Object value) {
+        DeviceNode n = new DeviceNode(name);
+        if (value instanceof Long) {
+            n.setValue((Long) value);
+        } else if (value instanceof String) {
+            n.setValue((String) value);
+        }
+        return n;
+    }
+
+    private static File newestLog(File dir) {
+        File newest = null;
+        long seq = -1;
+        for (String n : dir.list()) {
+            if (n.startsWith("log-") && n.endsWith(".wal")) {
+                long s = Long.parseLong(n.substring(4, n.length() - 4));
+                if (s > seq) {
+                    seq = s;
+                    newest = new File(dir, n);
+                }
+            }
+        }
+        return newest;
+    }
+
+    // name, value type, value, attributes and children, all the way down
+    private static void compare(String what, DeviceNode expected, DeviceNode actual) {
+        if (actual == null) {
+            fail(what + ": missing " + expected.getNodePath());
+            return;
+        }
+        String path = what + ": " + expected.getNodePath();
+        check(path + " name", expected.getName().equals(actual.getName()));
+        check(path + " value type " + expected.getValueType() + " came back as " + actual.getValueType(),
+                expected.getValueType() == actual.getValueType());
+        check(path + " value " + expected.getValue() + " came back as " + actual.getValue(),
+                expected.getValue() == null ? actual.getValue() == null : expected.getValue().equals(actual.getValue()));
+        check(path + " attributes", expected.getAttributes().equals(actual.getAttributes()));
+        check(path + " children " + expected.getChildren().keySet() + " came back as " + actual.getChildren().keySet(),
+                expected.getChildren().keySet().equals(actual.getChildren().keySet()));
+        for (Map.Entry<String, DeviceNode> e : expected.getChildren().entrySet()) {
+            compare(what, e.getValue(), actual.getChild(e.getKey()));
+        }
+    }
+
+    private static void check(String what, boolean ok) {
+        if (!ok) {
+            fail(what);
+        }
+    }
+
+    private static void fail(String what) {
+        failures++;
+        System.out.println("FAILED: " + what);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}